@@ -1,6 +1,7 @@
 package com.mikeprimm.WorldMapper;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
 
@@ -18,11 +19,36 @@ public class BufferOutputStream extends OutputStream {
     public void reset() {
         len = 0;
     }
+
+    // Make sure there is room for at least cnt more bytes
+    public final void reserve(int cnt) {
+        if ((len + cnt) > buf.length) {
+            grow(len + cnt);
+        }
+    }
+
+    // Grow buffer to hold at least given length: doubles, so filling a buffer copies each byte about once
+    private void grow(int minlen) {
+        int nlen = Math.max(minlen, 2 * buf.length) + CHUNK_SIZE - 1;
+        buf = Arrays.copyOf(buf, nlen - (nlen % CHUNK_SIZE));
+    }
+
+    // Append all remaining bytes from given stream
+    public final void readFrom(InputStream in) throws IOException {
+        int rlen;
+        do {
+            reserve(CHUNK_SIZE);
+            rlen = in.read(buf, len, buf.length - len);
+            if (rlen > 0) {
+                len += rlen;
+            }
+        } while (rlen >= 0);
+    }
             
     @Override
     public final void write(int v) throws IOException {
         if (len >= buf.length){
-            buf = Arrays.copyOf(buf, buf.length + CHUNK_SIZE);
+            grow(len + 1);
         }
         buf[len++] = (byte) v;
     }
@@ -30,13 +56,11 @@ public class BufferOutputStream extends OutputStream {
     @Override
     public final void write(byte[] b, int off, int wlen) {
         if (wlen > 0) {
-            if ((len + wlen - 1) >= buf.length) {
-                int nlen = len + wlen + CHUNK_SIZE - 1;
-                buf = Arrays.copyOf(buf, nlen - (nlen % CHUNK_SIZE));
-            }
-            for (int i = 0; i < wlen; i++) {
-                buf[len++] = b[off++];
+            if ((len + wlen) > buf.length) {
+                grow(len + wlen);
             }
+            System.arraycopy(b, off, buf, len, wlen);
+            len += wlen;
         }
     }
 
@@ -0,0 +1,230 @@
+package com.mikeprimm.WorldMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.spout.nbt.CompoundMap;
+import org.spout.nbt.CompoundTag;
+import org.spout.nbt.Tag;
+import org.spout.nbt.util.NBTMapper;
+
+/**
+ * Block ID census of a world: for each chunk of each region file, the set of block ID:meta values present.
+ *
+ * Each region is held as a compact encoded record (per chunk: sorted ID*16+meta values, delta and varint encoded), so
+ * whole worlds fit in memory.  The index file is a GZIP stream of these records.
+ */
+public class CensusIndex {
+    private static final int MAGIC = 0x574D4349;    // "WMCI"
+    private static final int VERSION = 1;
+
+    // Census record for one region file
+    public static class Region {
+        public final String path;   // Path relative to world directory
+        public final long lastModified;
+        public final long length;
+        private final byte[] data;  // Encoded chunk records
+
+        Region(String path, long lastModified, long length, byte[] data) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.data = data;
+        }
+        // Test if region record still matches the file
+        public boolean isCurrent(File f) {
+            return (f.lastModified() == lastModified) && (f.length() == length);
+        }
+        /**
+         * Decode chunk value sets
+         * @param timestamps - if not null, filled with chunk timestamps
+         * @return values, by chunk index (x + 32*z): null if chunk not present
+         */
+        public int[][] getChunkValues(int[] timestamps) {
+            int[][] vals = new int[1024][];
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                int cnt = readVarInt(in);
+                for (int i = 0; i < cnt; i++) {
+                    int idx = readVarInt(in);
+                    int ts = in.readInt();
+                    if (timestamps != null) timestamps[idx] = ts;
+                    int[] v = new int[readVarInt(in)];
+                    for (int j = 0, last = 0; j < v.length; j++) {
+                        last += readVarInt(in);
+                        v[j] = last;
+                    }
+                    vals[idx] = v;
+                }
+            } catch (IOException iox) {
+                throw new IllegalStateException("Corrupt census record for " + path, iox);
+            }
+            return vals;
+        }
+    }
+
+    private final Map<String, Region> regions = new TreeMap<String, Region>();
+
+    // Add census of region file
+    public synchronized void addRegion(String path, long lastModified, long length, int[][] chunkvals, int[] timestamps) {
+        BufferOutputStream buf = new BufferOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        try {
+            int cnt = 0;
+            for (int[] v : chunkvals) {
+                if (v != null) cnt++;
+            }
+            writeVarInt(out, cnt);
+            for (int idx = 0; idx < chunkvals.length; idx++) {
+                int[] v = chunkvals[idx];
+                if (v == null) continue;
+                writeVarInt(out, idx);
+                out.writeInt(timestamps[idx]);
+                writeVarInt(out, v.length);
+                for (int j = 0, last = 0; j < v.length; j++) {
+                    writeVarInt(out, v[j] - last);
+                    last = v[j];
+                }
+            }
+            out.flush();
+        } catch (IOException iox) {    // Not possible for memory buffer
+            throw new IllegalStateException(iox);
+        }
+        byte[] data = new byte[buf.len];
+        System.arraycopy(buf.buf, 0, data, 0, buf.len);
+        regions.put(path, new Region(path, lastModified, length, data));
+    }
+
+    public synchronized Region getRegion(String path) {
+        return regions.get(path);
+    }
+
+    public synchronized List<Region> getRegions() {
+        return new ArrayList<Region>(regions.values());
+    }
+
+    // Collect distinct block ID*16+meta values in chunk (air excluded), sorted
+    public static int[] scanChunk(Tag<?> chunk, BitSet work) throws IOException {
+        CompoundMap val = NBTMapper.getTagValue(chunk, CompoundMap.class);
+        CompoundMap lvl = (val != null) ? NBTMapper.getTagValue(val.get("Level"), CompoundMap.class) : null;
+        if (lvl == null) throw new IOException("Chunk is missing Level data");
+        @SuppressWarnings("unchecked")
+        List<CompoundTag> sections = NBTMapper.getTagValue(lvl.get("Sections"), List.class);
+        if (sections == null) throw new IOException("No value for Sections in chunk");
+        work.clear();
+        for (CompoundTag sect : sections) {
+            CompoundMap s = sect.getValue();
+            byte[] blocks = NBTMapper.getTagValue(s.get("Blocks"), byte[].class);
+            byte[] ext = NBTMapper.getTagValue(s.get("Add"), byte[].class);
+            byte[] data = NBTMapper.getTagValue(s.get("Data"), byte[].class);
+            if ((blocks == null) || (blocks.length < 4096) || (data == null) || (data.length < 2048)) {
+                throw new IOException("Section missing Blocks or Data field");
+            }
+            if ((ext != null) && (ext.length < 2048)) ext = null;
+            short[] cells = SectionCodec.getScratch();
+            SectionCodec.unpack(blocks, ext, data, cells);
+            for (int i = 0; i < 4096; i++) {
+                int v = cells[i] & 0xFFFF;
+                if (v < 16) continue;   // Air
+                work.set(v);
+            }
+        }
+        int[] v = new int[work.cardinality()];
+        for (int i = work.nextSetBit(0), j = 0; i >= 0; i = work.nextSetBit(i + 1)) {
+            v[j++] = i;
+        }
+        return v;
+    }
+
+    public synchronized void save(File f) throws IOException {
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(f), 65536));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(regions.size());
+            for (Region r : regions.values()) {
+                out.writeUTF(r.path);
+                out.writeLong(r.lastModified);
+                out.writeLong(r.length);
+                out.writeInt(r.data.length);
+                out.write(r.data);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static CensusIndex load(File f) throws IOException {
+        CensusIndex idx = new CensusIndex();
+        DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(f), 65536));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a census index: " + f.getPath());
+            }
+            int ver = in.readInt();
+            if (ver != VERSION) {
+                throw new IOException("Unsupported census index version " + ver + ": " + f.getPath());
+            }
+            int cnt = in.readInt();
+            for (int i = 0; i < cnt; i++) {
+                String path = in.readUTF();
+                long mod = in.readLong();
+                long len = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                idx.regions.put(path, new Region(path, mod, len, data));
+            }
+        } finally {
+            in.close();
+        }
+        return idx;
+    }
+
+    // Path of file relative to world directory, with '/' separators
+    public static String relativePath(File worlddir, File f) {
+        String base = worlddir.getPath();
+        String p = f.getPath();
+        if (p.startsWith(base)) {
+            p = p.substring(base.length());
+        }
+        p = p.replace(File.separatorChar, '/');
+        while (p.startsWith("/")) {
+            p = p.substring(1);
+        }
+        return p;
+    }
+
+    private static void writeVarInt(OutputStream out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Bad varint");
+    }
+}
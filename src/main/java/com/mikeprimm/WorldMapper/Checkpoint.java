@@ -0,0 +1,86 @@
+package com.mikeprimm.WorldMapper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checkpoint journal of a run: one line per completed source file (path, last modified, length), appended and synced
+ * as each output is published.  A resumed run skips files recorded as done, unless the source has changed since.
+ */
+public class Checkpoint {
+    public static final String FILENAME = ".worldmapper-checkpoint";
+
+    private final File file;
+    private final boolean resumed;
+    private final Map<String, String> done = new HashMap<String, String>();
+    private FileOutputStream out;
+
+    /**
+     * Open checkpoint journal
+     * @param file - journal file
+     * @param resume - if true, load completed files from existing journal; else start new journal
+     */
+    public Checkpoint(File file, boolean resume) throws IOException {
+        this.file = file;
+        this.resumed = resume;
+        if (resume && file.exists()) {
+            BufferedReader rdr = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = rdr.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    if (tab < 0) continue;  // Partial last line
+                    done.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            } finally {
+                rdr.close();
+            }
+        }
+        out = new FileOutputStream(file, resume);
+    }
+
+    // Test if run continues an earlier one
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    // Number of files recorded as done
+    public synchronized int getDoneCount() {
+        return done.size();
+    }
+
+    // Test if source file at given path was completed, and is unchanged since
+    public synchronized boolean isDone(String path, File src) {
+        String v = done.get(path);
+        return (v != null) && v.equals(stamp(src));
+    }
+
+    // Record source file at given path as completed (call after output is published)
+    public synchronized void markDone(String path, File src) throws IOException {
+        String v = stamp(src);
+        done.put(path, v);
+        out.write((path + "\t" + v + "\n").getBytes("UTF-8"));
+        out.getFD().sync();
+    }
+
+    // Close journal - if complete, journal is deleted
+    public synchronized void close(boolean complete) {
+        try {
+            out.close();
+        } catch (IOException iox) {
+        }
+        if (complete) {
+            file.delete();
+        }
+    }
+
+    private static String stamp(File src) {
+        return src.lastModified() + "\t" + src.length();
+    }
+}
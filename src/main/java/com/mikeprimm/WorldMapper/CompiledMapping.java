@@ -0,0 +1,188 @@
+package com.mikeprimm.WorldMapper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Mapping tables in compiled (binary) form, as written by compile-mapping.  Loading one is a memory map and a few bulk
+ * array copies, with none of the JSON parsing and checking of a mapping file.
+ *
+ * Format (big endian): magic, version, source file modified time and path, then the block ID*16+meta table, biome
+ * specific tables (as index, value pairs of the entries that are not identity), flag sets, random target lists and item
+ * mappings.
+ */
+public class CompiledMapping {
+    public static final int MAGIC = 0x574D4D50;    // "WMMP"
+    public static final int VERSION = 1;
+    public static final int SIZE = 4096 * 16;       // Entries in block ID*16+meta table
+
+    public int[] blocks;                // New ID*16+meta, by ID*16+meta (RANDOM_INDEX+n for random list n)
+    public int[][] biomes = new int[256][];     // Biome specific tables, by biome ID (null if none)
+    public BitSet biomeSpecific, tossTileEntity, tossIfUnsupported, tossIfUnattached, transparent;
+    public List<int[]> random = new ArrayList<int[]>();
+    public int[] items = new int[0];    // id, damage, newid, newdamage of each item mapping
+    public long sourceModified;         // Modified time of source mapping file
+    public String sourcePath = "";
+
+    // Test if file is a compiled mapping
+    public static boolean isCompiled(File f) {
+        byte[] b = new byte[4];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(f);
+            return (in.read(b) == 4) && (ByteBuffer.wrap(b).getInt() == MAGIC);
+        } catch (IOException iox) {
+            return false;
+        } finally {
+            if (in != null) { try { in.close(); } catch (IOException iox) {} }
+        }
+    }
+
+    // Write to file (via temporary file, so readers never see a partial table)
+    public void save(File f) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceModified);
+            byte[] path = sourcePath.getBytes("UTF-8");
+            out.writeInt(path.length);
+            out.write(path);
+            writeInts(out, blocks);
+            int cnt = 0;
+            for (int[] b : biomes) {
+                if (b != null) cnt++;
+            }
+            out.writeInt(cnt);
+            for (int i = 0; i < biomes.length; i++) {
+                if (biomes[i] == null) continue;
+                out.writeInt(i);
+                int n = 0;
+                for (int j = 0; j < SIZE; j++) {
+                    if (biomes[i][j] != j) n++;
+                }
+                out.writeInt(n);
+                for (int j = 0; j < SIZE; j++) {
+                    if (biomes[i][j] == j) continue;
+                    out.writeInt(j);
+                    out.writeInt(biomes[i][j]);
+                }
+            }
+            for (BitSet bs : new BitSet[] { biomeSpecific, tossTileEntity, tossIfUnsupported, tossIfUnattached, transparent }) {
+                long[] v = bs.toLongArray();
+                out.writeInt(v.length);
+                for (long l : v) {
+                    out.writeLong(l);
+                }
+            }
+            out.writeInt(random.size());
+            for (int[] r : random) {
+                out.writeInt(r.length);
+                writeInts(out, r);
+            }
+            out.writeInt(items.length);
+            writeInts(out, items);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                tmp.delete();
+                throw new IOException("Cannot replace " + f.getPath());
+            }
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] v) throws IOException {
+        for (int i : v) {
+            out.writeInt(i);
+        }
+    }
+
+    // Read from file (memory mapped)
+    public static CompiledMapping load(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if ((buf.remaining() < 8) || (buf.getInt() != MAGIC)) {
+                throw new IOException("Not a compiled mapping: " + f.getPath());
+            }
+            int ver = buf.getInt();
+            if (ver != VERSION) {
+                throw new IOException("Compiled mapping " + f.getPath() + " is version " + ver + " (expected " + VERSION + "): compile it again");
+            }
+            CompiledMapping cm = new CompiledMapping();
+            cm.sourceModified = buf.getLong();
+            byte[] path = new byte[checkCount(buf, buf.getInt(), 1)];
+            buf.get(path);
+            cm.sourcePath = new String(path, "UTF-8");
+            cm.blocks = readInts(buf, SIZE);
+            int cnt = checkCount(buf, buf.getInt(), 8);
+            for (int i = 0; i < cnt; i++) {
+                int id = buf.getInt();
+                if ((id < 0) || (id >= cm.biomes.length)) throw new IOException("Bad biome ID in compiled mapping: " + id);
+                int[] pairs = readInts(buf, 2 * checkCount(buf, buf.getInt(), 8));
+                int[] b = new int[SIZE];
+                for (int j = 0; j < SIZE; j++) {
+                    b[j] = j;
+                }
+                for (int j = 0; j < pairs.length; j += 2) {
+                    if ((pairs[j] < 0) || (pairs[j] >= SIZE)) throw new IOException("Compiled mapping is truncated or corrupt");
+                    b[pairs[j]] = pairs[j + 1];
+                }
+                cm.biomes[id] = b;
+            }
+            BitSet[] sets = new BitSet[5];
+            for (int i = 0; i < sets.length; i++) {
+                long[] v = new long[checkCount(buf, buf.getInt(), 8)];
+                buf.asLongBuffer().get(v);
+                buf.position(buf.position() + (8 * v.length));
+                sets[i] = BitSet.valueOf(v);
+            }
+            cm.biomeSpecific = sets[0];
+            cm.tossTileEntity = sets[1];
+            cm.tossIfUnsupported = sets[2];
+            cm.tossIfUnattached = sets[3];
+            cm.transparent = sets[4];
+            cnt = checkCount(buf, buf.getInt(), 4);
+            for (int i = 0; i < cnt; i++) {
+                cm.random.add(readInts(buf, checkCount(buf, buf.getInt(), 4)));
+            }
+            cm.items = readInts(buf, checkCount(buf, buf.getInt(), 4));
+            return cm;
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Check count of entries of given size against bytes left
+    private static int checkCount(ByteBuffer buf, int cnt, int size) throws IOException {
+        if ((cnt < 0) || (((long) cnt * size) > buf.remaining())) {
+            throw new IOException("Compiled mapping is truncated or corrupt");
+        }
+        return cnt;
+    }
+
+    private static int[] readInts(ByteBuffer buf, int cnt) throws IOException {
+        checkCount(buf, cnt, 4);
+        int[] v = new int[cnt];
+        IntBuffer ib = buf.asIntBuffer();
+        ib.get(v);
+        buf.position(buf.position() + (4 * cnt));
+        return v;
+    }
+}
@@ -0,0 +1,72 @@
+package com.mikeprimm.WorldMapper;
+
+import java.util.Arrays;
+
+/**
+ * Map of int keys to int values, by open addressing (linear probing) in a single array of key/value pairs: no boxing,
+ * and a lookup is usually one or two array reads.  Integer.MIN_VALUE cannot be used as a key.
+ */
+public class IntMap {
+    private static final int FREE = Integer.MIN_VALUE;  // Key of empty slot
+
+    private int[] slots;    // Key, value pairs
+    private int mask;       // Slot count - 1 (slot count is power of two)
+    private int size;
+
+    public IntMap() {
+        init(16);
+    }
+
+    private void init(int nslots) {
+        slots = new int[2 * nslots];
+        Arrays.fill(slots, FREE);
+        mask = nslots - 1;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        init(16);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Get value for key, or deflt if none
+    public int get(int key, int deflt) {
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            int k = slots[2 * i];
+            if (k == key) return slots[(2 * i) + 1];
+            if (k == FREE) return deflt;
+        }
+    }
+
+    public void put(int key, int value) {
+        if (key == FREE) throw new IllegalArgumentException("Key not supported: " + key);
+        if ((2 * (size + 1)) > (mask + 1)) {    // Keep at most half full
+            int[] old = slots;
+            init(2 * (mask + 1));
+            for (int i = 0; i < old.length; i += 2) {
+                if (old[i] != FREE) put(old[i], old[i + 1]);
+            }
+        }
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            int k = slots[2 * i];
+            if (k == key) {
+                slots[(2 * i) + 1] = value;
+                return;
+            }
+            if (k == FREE) {
+                slots[2 * i] = key;
+                slots[(2 * i) + 1] = value;
+                size++;
+                return;
+            }
+        }
+    }
+}
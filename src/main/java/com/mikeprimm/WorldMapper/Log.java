@@ -0,0 +1,140 @@
+package com.mikeprimm.WorldMapper;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logging, kept off the hot path.
+ *
+ * Messages go through a bounded queue to a single writer thread, so workers never block on console I/O.  When the
+ * queue is full, DEBUG/INFO messages are dropped (and counted); WARN/ERROR wait for room.  High-volume events are
+ * counted per category, with only the first few of each category printed, and a summary printed at the end.
+ */
+public class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int QUEUE_SIZE = 8192;
+
+    private static class Entry {
+        final Level level;
+        final String msg;
+        Entry(Level level, String msg) {
+            this.level = level;
+            this.msg = msg;
+        }
+    }
+    private static final Entry STOP = new Entry(Level.ERROR, null);
+
+    private static volatile Level level = Level.INFO;
+    private static volatile int eventLimit = 5;   // Events printed per category
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final ConcurrentHashMap<String, AtomicLong> events = new ConcurrentHashMap<String, AtomicLong>();
+    private static volatile Thread writer;
+
+    public static void setLevel(Level lvl) {
+        level = lvl;
+    }
+    public static void setEventLimit(int limit) {
+        eventLimit = limit;
+    }
+    public static boolean isEnabled(Level lvl) {
+        return lvl.compareTo(level) >= 0;
+    }
+
+    public static void debug(String msg) {
+        log(Level.DEBUG, msg);
+    }
+    public static void info(String msg) {
+        log(Level.INFO, msg);
+    }
+    public static void warn(String msg) {
+        log(Level.WARN, msg);
+    }
+    public static void error(String msg) {
+        log(Level.ERROR, msg);
+    }
+
+    public static void log(Level lvl, String msg) {
+        if (!isEnabled(lvl)) return;
+        if (writer == null) startWriter();
+        Entry e = new Entry(lvl, msg);
+        if (lvl.compareTo(Level.WARN) >= 0) {
+            try {
+                queue.put(e);
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        else if (!queue.offer(e)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Count event in given category, and log it if within the per-category limit.  Message is only formatted if it
+     * will be printed.
+     */
+    public static void event(Level lvl, String category, String fmt, Object... args) {
+        AtomicLong cnt = events.get(category);
+        if (cnt == null) {
+            AtomicLong ncnt = new AtomicLong();
+            cnt = events.putIfAbsent(category, ncnt);
+            if (cnt == null) cnt = ncnt;
+        }
+        long n = cnt.incrementAndGet();
+        if ((n <= eventLimit) && isEnabled(lvl)) {
+            log(lvl, String.format(fmt, args));
+        }
+    }
+
+    // Get count of events in category
+    public static long getEventCount(String category) {
+        AtomicLong cnt = events.get(category);
+        return (cnt != null) ? cnt.get() : 0;
+    }
+
+    private static synchronized void startWriter() {
+        if (writer != null) return;
+        writer = new Thread("log-writer") {
+            public void run() {
+                try {
+                    Entry e;
+                    while ((e = queue.take()) != STOP) {
+                        PrintStream ps = (e.level.compareTo(Level.WARN) >= 0) ? System.err : System.out;
+                        ps.println(e.msg);
+                    }
+                } catch (InterruptedException ix) {
+                }
+                System.out.flush();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Print event summary, then drain queue and stop writer
+    public static synchronized void shutdown() {
+        Map<String, AtomicLong> sorted = new TreeMap<String, AtomicLong>(events);
+        for (Map.Entry<String, AtomicLong> e : sorted.entrySet()) {
+            info(e.getKey() + ": " + e.getValue().get() + " events");
+        }
+        if (dropped.get() > 0) {
+            warn("Log queue full: " + dropped.get() + " messages dropped");
+        }
+        if (writer == null) return;
+        try {
+            queue.put(STOP);
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+}
@@ -0,0 +1,78 @@
+package com.mikeprimm.WorldMapper;
+
+import java.io.IOException;
+
+/**
+ * Run-wide budget for chunk data in flight (--max-memory).
+ *
+ * Each worker acquires an estimate of the memory a chunk will take while it is decoded, mapped and encoded, and
+ * releases it once done; a worker that would take the total over budget waits for others to finish theirs.  A chunk
+ * larger than the whole budget waits until nothing else is in flight, then runs alone.  Holders never wait on
+ * anything else while holding, so waiting cannot deadlock.
+ */
+public class MemoryBudget {
+    /**
+     * In-flight bytes per compressed chunk byte: chunk NBT inflates to about 4-8 times its compressed size, and it is
+     * held as the inflate buffer, the parsed tags and the encode buffer at once.
+     */
+    public static final int EXPANSION = 24;
+
+    private static final Object lock = new Object();
+    private static long limit = 0;  // Bytes, 0=unlimited
+    private static long used = 0;
+
+    // Set budget in bytes (0 for none)
+    public static void setLimit(long bytes) {
+        synchronized (lock) {
+            limit = Math.max(0, bytes);
+            lock.notifyAll();
+        }
+    }
+
+    public static boolean isLimited() {
+        synchronized (lock) {
+            return limit > 0;
+        }
+    }
+
+    // Estimate in-flight bytes of chunk from its compressed data
+    public static long estimate(RegionFile.ChunkData cd) {
+        long clen = (cd.external != null) ? cd.external.length() : cd.len;
+        return clen * EXPANSION;
+    }
+
+    /**
+     * Acquire given bytes of budget, waiting until they fit
+     * @return bytes acquired: pass to release()
+     */
+    public static long acquire(long bytes) throws IOException {
+        synchronized (lock) {
+            if (limit <= 0) return 0;
+            bytes = Math.min(bytes, limit);     // Larger than budget: wait for all of it
+            if ((used + bytes) > limit) {
+                long tstart = Metrics.start();
+                while ((used + bytes) > limit) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ix) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for memory budget");
+                    }
+                    if (limit <= 0) return 0;
+                }
+                Metrics.stop(Metrics.Stage.MEMORY_WAIT, tstart);
+            }
+            used += bytes;
+            return bytes;
+        }
+    }
+
+    // Release bytes returned by acquire()
+    public static void release(long bytes) {
+        if (bytes <= 0) return;
+        synchronized (lock) {
+            used -= bytes;
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.mikeprimm.WorldMapper;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * Run-wide performance counters: per-stage timers, byte and item counters, and histograms.
+ *
+ * All updates are lock free, so any thread may record into them.
+ */
+public class Metrics {
+    // Processing stages that are timed
+    public enum Stage {
+        READ("read"),           // Chunk reads from region file
+        DECODE("decode"),       // Decompress and parse chunk NBT
+        MAP("map"),             // Block mapping of chunk
+        ENCODE("encode"),       // Serialize NBT
+        DEFLATE("deflate"),     // Compress chunk
+        ALLOC("alloc"),         // Sector allocation
+        WRITE("write"),         // Chunk writes to region file
+        COPY("copy"),           // Whole file copies
+        MEMORY_WAIT("memoryWait");  // Waits for memory budget (--max-memory)
+
+        final String id;
+        Stage(String id) { this.id = id; }
+    }
+    // Counted values
+    public enum Counter {
+        INPUT_BYTES("inputBytes"),              // Bytes of source files completed (drives progress)
+        BYTES_READ("bytesRead"),                // Compressed chunk bytes read
+        BYTES_INFLATED("bytesInflated"),        // Uncompressed chunk bytes read (zlib chunks)
+        BYTES_ENCODED("bytesEncoded"),          // Uncompressed chunk bytes written
+        BYTES_WRITTEN("bytesWritten"),          // Compressed chunk bytes written
+        BYTES_COPIED("bytesCopied"),            // Bytes of whole file copies
+        SECTORS_ALLOCATED("sectorsAllocated"),  // Sectors newly allocated for chunk writes
+        FILE_GROWTHS("fileGrowths"),            // Region file length extensions
+        REGIONS("regions"),
+        FILES_COPIED("filesCopied"),
+        FILES_RESUMED("filesResumed"),          // Files skipped as completed by earlier run
+        FILES_LINKED("filesLinked"),            // Unchanged files published as hard links
+        FILES_CLONED("filesCloned"),            // Unchanged files published as copy-on-write clones
+        REGIONS_UNCHANGED("regionsUnchanged"),  // Regions with no chunk changed by mapping
+        CHUNKS_READ("chunksRead"),
+        CHUNKS_UPDATED("chunksUpdated"),
+        CHUNKS_DELETED("chunksDeleted"),
+        CHUNKS_COPIED("chunksCopied"),          // Changed chunks synced as is, having nothing to map (watch)
+        CHUNKS_SKIPPED("chunksSkipped"),        // Chunks skipped using census index, or by merge policy
+        CHUNKS_RESUMED("chunksResumed"),        // Chunks skipped as already mapped in place by interrupted run
+        CHUNKS_EXTERNAL("chunksExternal"),      // Oversized chunks written to external (.mcc) files
+        CHUNKS_FAILED("chunksFailed"),          // Unreadable chunks left as is (--tolerant)
+        FILES_FAILED("filesFailed"),            // Unprocessable files left as is (--tolerant)
+        SECTIONS("sections"),
+        NEIGHBOR_CHUNKS_READ("neighborChunksRead"), // Chunks read only for neighbor rule lookups
+        BLOCKS_MAPPED("blocksMapped"),
+        ITEMS_MAPPED("itemsMapped"),            // Item stacks in tile entities and entities
+        COLUMNS_RELIT("columnsRelit"),          // Columns whose HeightMap changed (--fix-lighting)
+        TILEENTITIES_SCRUBBED("tileEntitiesScrubbed");
+
+        final String id;
+        Counter(String id) { this.id = id; }
+    }
+
+    /**
+     * Histogram with power-of-two buckets
+     */
+    public static class Histogram {
+        private final String units;
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String units) {
+            this.units = units;
+        }
+        public void record(long v) {
+            if (v < 0) v = 0;
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(v));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+            long m;
+            while (v > (m = max.get())) {
+                if (max.compareAndSet(m, v)) break;
+            }
+        }
+        // Upper bound of bucket containing given percentile
+        public long percentile(double pct) {
+            long total = count.get();
+            long target = (long) Math.ceil(total * pct / 100.0);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if ((seen >= target) && (seen > 0)) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+        private static long upperBound(int bucket) {
+            return (bucket == 0) ? 0 : ((bucket >= 63) ? Long.MAX_VALUE : ((1L << bucket) - 1));
+        }
+        Map<String, Object> toReport() {
+            Map<String, Object> r = new LinkedHashMap<String, Object>();
+            long n = count.get();
+            r.put("units", units);
+            r.put("count", n);
+            r.put("mean", (n > 0) ? ((double) sum.get() / n) : 0.0);
+            r.put("max", max.get());
+            r.put("p50", percentile(50));
+            r.put("p90", percentile(90));
+            r.put("p99", percentile(99));
+            List<Object> b = new ArrayList<Object>();
+            for (int i = 0; i < 64; i++) {
+                long c = buckets.get(i);
+                if (c == 0) continue;
+                Map<String, Object> e = new LinkedHashMap<String, Object>();
+                e.put("le", upperBound(i));
+                e.put("count", c);
+                b.add(e);
+            }
+            r.put("buckets", b);
+            return r;
+        }
+    }
+
+    private static final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+    private static final AtomicLongArray stageCalls = new AtomicLongArray(Stage.values().length);
+    private static final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    public static final Histogram chunkSize = new Histogram("bytes");
+    public static final Histogram chunkLatency = new Histogram("microseconds");
+
+    private static final Map<String, Object> sections = new LinkedHashMap<String, Object>();  // Added report sections
+
+    private static long runStart = System.nanoTime();
+    private static final AtomicLong totalInputBytes = new AtomicLong();   // Bytes of source files to be consumed
+    // Bytes counted by addInput() for current file, by thread
+    private static final ThreadLocal<long[]> taskInput = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+    private static Timer progressTimer;
+
+    // Start timing a stage: pass result to stop()
+    public static long start() {
+        return System.nanoTime();
+    }
+    // Finish timing a stage
+    public static void stop(Stage stage, long start) {
+        record(stage, System.nanoTime() - start);
+    }
+    // Add one timed call of a stage, for time measured apart
+    public static void record(Stage stage, long nanos) {
+        stageNanos.addAndGet(stage.ordinal(), nanos);
+        stageCalls.incrementAndGet(stage.ordinal());
+    }
+    public static void add(Counter c, long v) {
+        counters.addAndGet(c.ordinal(), v);
+    }
+    public static long get(Counter c) {
+        return counters.get(c.ordinal());
+    }
+
+    // Add section to report (replacing any with the same key)
+    public static void putReport(String key, Object value) {
+        synchronized (sections) {
+            sections.put(key, value);
+        }
+    }
+
+    // Reset run start time (call once work is about to begin)
+    public static void beginRun() {
+        runStart = System.nanoTime();
+        totalInputBytes.set(0);
+    }
+
+    // Add bytes of source files found to be consumed by the run (progress is INPUT_BYTES against this total)
+    public static void addTotalInput(long bytes) {
+        totalInputBytes.addAndGet(bytes);
+    }
+
+    // Count source bytes consumed part way through the calling thread's current file (see finishInput())
+    public static void addInput(long bytes) {
+        add(Counter.INPUT_BYTES, bytes);
+        taskInput.get()[0] += bytes;
+    }
+
+    // Count the rest of the calling thread's current file, of given size, as consumed
+    public static void finishInput(long size) {
+        long[] done = taskInput.get();
+        add(Counter.INPUT_BYTES, Math.max(0, size - done[0]));
+        done[0] = 0;
+    }
+
+    // Start periodic progress line
+    public static synchronized void startProgress(int intervalsecs) {
+        if ((intervalsecs <= 0) || (progressTimer != null)) return;
+        progressTimer = new Timer("progress", true);
+        progressTimer.scheduleAtFixedRate(new TimerTask() {
+            public void run() {
+                Log.info(progressLine());
+            }
+        }, intervalsecs * 1000L, intervalsecs * 1000L);
+    }
+
+    public static synchronized void stopProgress() {
+        if (progressTimer != null) {
+            progressTimer.cancel();
+            progressTimer = null;
+        }
+    }
+
+    static String progressLine() {
+        double secs = (System.nanoTime() - runStart) / 1e9;
+        long in = get(Counter.INPUT_BYTES);
+        long total = totalInputBytes.get();
+        double mbps = (secs > 0) ? (in / 1048576.0 / secs) : 0;
+        double cps = (secs > 0) ? (get(Counter.CHUNKS_READ) / secs) : 0;
+        String eta = "?";
+        if ((total > 0) && (in > 0)) {
+            long left = (long) (secs * Math.max(0, total - in) / in);
+            eta = String.format("%d:%02d:%02d", left / 3600, (left / 60) % 60, left % 60);
+        }
+        String pct = (total > 0) ? String.format("%.1f%%", 100.0 * Math.min(in, total) / total) : "-";
+        return String.format("Progress: %s, %.1f MB/s, %.0f chunks/s, ETA %s", pct, mbps, cps, eta);
+    }
+
+    // Build report data
+    static Map<String, Object> toReport() {
+        Map<String, Object> r = new LinkedHashMap<String, Object>();
+        r.put("elapsedSeconds", (System.nanoTime() - runStart) / 1e9);
+        Map<String, Object> stages = new LinkedHashMap<String, Object>();
+        for (Stage s : Stage.values()) {
+            Map<String, Object> st = new LinkedHashMap<String, Object>();
+            st.put("seconds", stageNanos.get(s.ordinal()) / 1e9);
+            st.put("calls", stageCalls.get(s.ordinal()));
+            stages.put(s.id, st);
+        }
+        r.put("stages", stages);
+        Map<String, Object> cnts = new LinkedHashMap<String, Object>();
+        for (Counter c : Counter.values()) {
+            cnts.put(c.id, get(c));
+        }
+        r.put("counters", cnts);
+        Map<String, Object> hists = new LinkedHashMap<String, Object>();
+        hists.put("chunkSize", chunkSize.toReport());
+        hists.put("chunkLatency", chunkLatency.toReport());
+        r.put("histograms", hists);
+        synchronized (sections) {
+            r.putAll(sections);
+        }
+        return r;
+    }
+
+    // Write JSON report to given file
+    public static void writeReport(File f) throws IOException {
+        Writer w = new FileWriter(f);
+        try {
+            new GsonBuilder().setPrettyPrinting().create().toJson(toReport(), w);
+        } finally {
+            w.close();
+        }
+    }
+}
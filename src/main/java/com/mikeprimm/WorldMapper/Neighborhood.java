@@ -0,0 +1,152 @@
+package com.mikeprimm.WorldMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.spout.nbt.CompoundMap;
+import org.spout.nbt.CompoundTag;
+import org.spout.nbt.Tag;
+import org.spout.nbt.util.NBTMapper;
+
+/**
+ * Source blocks around the chunks being mapped, for mapping rules that depend on neighboring blocks.
+ *
+ * Chunks are kept decoded (an ID*16+meta array per section) in an LRU cache, so a lookup in any direction is a hash
+ * lookup, across chunk and region borders.  Chunks not yet seen are read from the source region files on first
+ * lookup.  With a region processed in z-major order, the cache only needs about two rows of chunks for each chunk to
+ * be read once.  Lookups always see blocks as they were before mapping.
+ */
+public class Neighborhood {
+    public static final int DEFAULT_CHUNKS = (2 * 32) + 4;  // Two rows of chunks, plus the ends of the next
+    private static final int MAX_REGIONS = 4;               // Neighbor region files kept open
+    private static final short[][] MISSING = new short[16][];   // Chunk not generated: all air
+
+    private final File regiondir;
+    private final Map<Long, short[][]> chunks;
+    private final Map<Long, RegionFile> regions;
+    private long lastkey = Long.MIN_VALUE;  // Last chunk looked up (most lookups hit the same chunk)
+    private short[][] last;
+
+    /**
+     * @param regiondir - directory of source region files
+     * @param maxchunks - decoded chunks to keep
+     */
+    public Neighborhood(File regiondir, final int maxchunks) {
+        this.regiondir = regiondir;
+        this.chunks = new LinkedHashMap<Long, short[][]>(2 * maxchunks, 0.75F, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry<Long, short[][]> e) {
+                return size() > maxchunks;
+            }
+        };
+        this.regions = new LinkedHashMap<Long, RegionFile>(2 * MAX_REGIONS, 0.75F, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry<Long, RegionFile> e) {
+                if (size() <= MAX_REGIONS) return false;
+                if (e.getValue() != null) e.getValue().cleanup();
+                return true;
+            }
+        };
+    }
+
+    private static long key(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    // Add chunk about to be mapped, from its sections (saves reading it again from the source)
+    public void put(int cx, int cz, List<CompoundTag> sections) throws IOException {
+        short[][] c = decode(sections);
+        lastkey = key(cx, cz);
+        last = c;
+        chunks.put(lastkey, c);
+    }
+
+    // Get source block ID*16+meta at world coordinates (air if outside world, or chunk not generated)
+    public int getIDMeta(int x, int y, int z) throws IOException {
+        if ((y < 0) || (y > 255)) return 0;
+        long k = key(x >> 4, z >> 4);
+        if (k != lastkey) {
+            short[][] c = chunks.get(k);
+            if (c == null) {
+                c = load(x >> 4, z >> 4);
+                chunks.put(k, c);
+            }
+            lastkey = k;
+            last = c;
+        }
+        short[] s = last[y >> 4];
+        return (s != null) ? (s[((y & 0xF) << 8) | ((z & 0xF) << 4) | (x & 0xF)] & 0xFFFF) : 0;
+    }
+
+    // Close neighbor region files
+    public void close() {
+        for (RegionFile rf : regions.values()) {
+            if (rf != null) rf.cleanup();
+        }
+        regions.clear();
+        chunks.clear();
+        last = null;
+        lastkey = Long.MIN_VALUE;
+    }
+
+    // Read and decode chunk from source region file
+    private short[][] load(int cx, int cz) throws IOException {
+        RegionFile rf = getRegion(cx >> 5, cz >> 5);
+        if ((rf == null) || !rf.chunkExists(cx & 31, cz & 31)) {
+            return MISSING;
+        }
+        Tag<?> tag = rf.readChunk(cx & 31, cz & 31);
+        CompoundMap val = NBTMapper.getTagValue(tag, CompoundMap.class);
+        CompoundMap lvl = (val != null) ? NBTMapper.getTagValue(val.get("Level"), CompoundMap.class) : null;
+        if (lvl == null) throw new IOException("Chunk " + cx + "," + cz + " is missing Level data");
+        @SuppressWarnings("unchecked")
+        List<CompoundTag> sections = NBTMapper.getTagValue(lvl.get("Sections"), List.class);
+        if (sections == null) throw new IOException("No value for Sections in chunk " + cx + "," + cz);
+        Metrics.add(Metrics.Counter.NEIGHBOR_CHUNKS_READ, 1);
+        return decode(sections);
+    }
+
+    // Get source region file (null if missing or unreadable)
+    private RegionFile getRegion(int rx, int rz) {
+        long k = key(rx, rz);
+        if (regions.containsKey(k)) {
+            return regions.get(k);
+        }
+        RegionFile rf = null;
+        File f = new File(regiondir, "r." + rx + "." + rz + ".mca");
+        if (f.exists()) {
+            try {
+                rf = new RegionFile(f, true);
+            } catch (IOException iox) {
+                Log.warn("Neighbor region " + f.getPath() + " not readable (treated as empty): " + iox.getMessage());
+            }
+        }
+        regions.put(k, rf);
+        return rf;
+    }
+
+    // Decode sections to ID*16+meta arrays, by section Y
+    private static short[][] decode(List<CompoundTag> sections) throws IOException {
+        short[][] c = new short[16][];
+        for (CompoundTag sect : sections) {
+            CompoundMap s = sect.getValue();
+            Byte y = NBTMapper.getTagValue(s.get("Y"), Byte.class);
+            if (y == null) throw new IOException("Section missing Y field");
+            if ((y < 0) || (y > 15)) continue;
+            short[] cells = new short[4096];
+            byte[] blocks = NBTMapper.getTagValue(s.get("Blocks"), byte[].class);
+            byte[] ext = NBTMapper.getTagValue(s.get("Add"), byte[].class);
+            byte[] data = NBTMapper.getTagValue(s.get("Data"), byte[].class);
+            if ((blocks == null) || (blocks.length < 4096) || (data == null) || (data.length < 2048)) {
+                throw new IOException("Section missing Blocks or Data field");
+            }
+            if ((ext != null) && (ext.length < 2048)) ext = null;
+            SectionCodec.unpack(blocks, ext, data, cells);
+            c[y] = cells;
+        }
+        return c;
+    }
+}
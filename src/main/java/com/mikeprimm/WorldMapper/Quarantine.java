@@ -0,0 +1,129 @@
+package com.mikeprimm.WorldMapper;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * Chunks (or whole files) that could not be processed by a tolerant run (--tolerant).  Each failure is recorded for the
+ * report, and if a quarantine directory is set, the raw chunk record (4 byte length, encoding byte, compressed data - as
+ * stored in a region file) is saved there for later inspection.
+ */
+public class Quarantine {
+    public static final String REPORT = "quarantine.json";
+
+    // One failed chunk or file, as reported
+    private static class Entry {
+        String file;
+        Integer x, z;       // Chunk in region (null for whole file)
+        String error;
+        String saved;       // Saved copy in quarantine directory, if any
+    }
+
+    private final File dir;
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    // Set up quarantine, saving chunks to given directory (null to only report)
+    public Quarantine(File dir) {
+        this.dir = dir;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Record failed chunk
+     * @param region - region file
+     * @param relpath - path of region file relative to world (names saved copy)
+     * @param x - chunk X in region
+     * @param z - chunk Z in region
+     * @param error - failure
+     * @param raw - raw chunk data, if readable (else null)
+     */
+    public void addChunk(File region, String relpath, int x, int z, String error, RegionFile.ChunkData raw) {
+        Entry e = new Entry();
+        e.file = region.getPath();
+        e.x = x;
+        e.z = z;
+        e.error = error;
+        if ((dir != null) && (raw != null)) {
+            File f = new File(dir, relpath + "." + x + "." + z + ".chunk");
+            try {
+                save(f, raw);
+                e.saved = f.getPath();
+            } catch (IOException iox) {
+                Log.warn("Cannot save quarantined chunk " + f.getPath() + ": " + iox.getMessage());
+            }
+        }
+        synchronized (this) {
+            entries.add(e);
+        }
+        Metrics.add(Metrics.Counter.CHUNKS_FAILED, 1);
+        Log.event(Log.Level.WARN, "chunk-failed", "Chunk %d,%d of %s left as is: %s", x, z, region.getPath(), error);
+    }
+
+    // Record failed file
+    public void addFile(File f, String error) {
+        Entry e = new Entry();
+        e.file = f.getPath();
+        e.error = error;
+        synchronized (this) {
+            entries.add(e);
+        }
+        Metrics.add(Metrics.Counter.FILES_FAILED, 1);
+        Log.event(Log.Level.WARN, "file-failed", "File %s left as is: %s", f.getPath(), error);
+    }
+
+    // Write report of failures (to quarantine directory, or given file if none)
+    public synchronized void writeReport(File deflt) throws IOException {
+        File f = (dir != null) ? new File(dir, REPORT) : deflt;
+        if (f.getParentFile() != null) {
+            f.getParentFile().mkdirs();
+        }
+        Writer w = new FileWriter(f);
+        try {
+            new GsonBuilder().setPrettyPrinting().create().toJson(entries, w);
+        } finally {
+            w.close();
+        }
+        Log.info(entries.size() + " failures reported in " + f.getPath());
+    }
+
+    // Save raw chunk record
+    private static void save(File f, RegionFile.ChunkData raw) throws IOException {
+        f.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+        try {
+            if (raw.external != null) {     // Oversized: copy external file
+                out.writeInt((int) raw.external.length() + 1);
+                out.writeByte(raw.encoding | RegionFile.EXTERNAL);
+                FileInputStream in = new FileInputStream(raw.external);
+                try {
+                    byte[] buf = new byte[65536];
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        out.write(buf, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            else {
+                out.writeInt(raw.len + 1);
+                out.writeByte(raw.encoding);
+                out.write(raw.data, 0, raw.len);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.mikeprimm.WorldMapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes to one region file: chunks written (with their new compressed data) and chunks deleted.
+ *
+ * Saved as a delta file (.mcd) by a mapping run with --delta, and applied to a copy of the original world with the
+ * apply command, so only changed chunks need to be shipped.
+ */
+public class RegionDelta {
+    public static final String SUFFIX = ".mcd";
+    private static final int MAGIC = 0x574D444C;    // "WMDL"
+    private static final int VERSION = 1;
+    private static final int OP_WRITE = 1;
+    private static final int OP_DELETE = 2;
+
+    // One changed chunk
+    private static class Entry {
+        final int idx;          // Chunk index (x + 32*z)
+        final int op;
+        final int timestamp;
+        final RegionFile.ChunkData data;    // New data, if written
+
+        Entry(int idx, int op, int timestamp, RegionFile.ChunkData data) {
+            this.idx = idx;
+            this.op = op;
+            this.timestamp = timestamp;
+            this.data = data;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private int writes;
+    private int deletes;
+
+    // Record chunk written with new compressed data
+    public void write(int x, int z, int timestamp, RegionFile.ChunkData data) {
+        entries.add(new Entry(x + (32 * z), OP_WRITE, timestamp, data));
+        writes++;
+    }
+
+    // Record chunk deleted
+    public void delete(int x, int z) {
+        entries.add(new Entry(x + (32 * z), OP_DELETE, 0, null));
+        deletes++;
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public int getWriteCount() {
+        return writes;
+    }
+
+    public int getDeleteCount() {
+        return deletes;
+    }
+
+    public void save(File f) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 65536));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry e : entries) {
+                out.writeShort(e.idx);
+                out.writeByte(e.op);
+                if (e.op == OP_WRITE) {
+                    out.writeInt(e.timestamp);
+                    out.writeByte(e.data.encoding);
+                    if (e.data.external != null) {  // Oversized chunk: copy in external file
+                        long len = e.data.external.length();
+                        if (len > Integer.MAX_VALUE) {
+                            throw new IOException("External chunk too large: " + e.data.external.getPath());
+                        }
+                        out.writeInt((int) len);
+                        FileInputStream in = new FileInputStream(e.data.external);
+                        try {
+                            byte[] buf = new byte[65536];
+                            int n;
+                            while ((len > 0) && ((n = in.read(buf, 0, (int) Math.min(buf.length, len))) > 0)) {
+                                out.write(buf, 0, n);
+                                len -= n;
+                            }
+                        } finally {
+                            in.close();
+                        }
+                        if (len > 0) {
+                            throw new IOException("External chunk truncated while copying: " + e.data.external.getPath());
+                        }
+                    }
+                    else {
+                        out.writeInt(e.data.len);
+                        out.write(e.data.data, 0, e.data.len);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static RegionDelta load(File f) throws IOException {
+        RegionDelta d = new RegionDelta();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 65536));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a region delta: " + f.getPath());
+            }
+            int ver = in.readInt();
+            if (ver != VERSION) {
+                throw new IOException("Unsupported region delta version " + ver + ": " + f.getPath());
+            }
+            int cnt = in.readInt();
+            for (int i = 0; i < cnt; i++) {
+                int idx = in.readUnsignedShort();
+                int op = in.readUnsignedByte();
+                if (idx >= 1024) {
+                    throw new IOException("Bad chunk index " + idx + " in " + f.getPath());
+                }
+                if (op == OP_WRITE) {
+                    int ts = in.readInt();
+                    int enc = in.readUnsignedByte();
+                    int len = in.readInt();
+                    if ((len <= 0) || (len > f.length())) {    // (Oversized chunks may exceed region limit)
+                        throw new IOException("Bad chunk length " + len + " in " + f.getPath());
+                    }
+                    byte[] buf = new byte[len];
+                    in.readFully(buf);
+                    d.write(idx & 31, idx >> 5, ts, new RegionFile.ChunkData(idx & 31, idx >> 5, buf, len, enc));
+                }
+                else if (op == OP_DELETE) {
+                    d.delete(idx & 31, idx >> 5);
+                }
+                else {
+                    throw new IOException("Bad delta operation " + op + " in " + f.getPath());
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return d;
+    }
+
+    /**
+     * Apply changes to region file.  Written chunks go out as one batch; nothing is committed, so the caller decides
+     * when changes become visible (see RegionFile.setJournaled()).
+     */
+    public void applyTo(RegionFile rf) throws IOException {
+        List<RegionFile.ChunkData> batch = new ArrayList<RegionFile.ChunkData>();
+        for (Entry e : entries) {
+            int x = e.idx & 31, z = e.idx >> 5;
+            if (e.op == OP_WRITE) {
+                rf.setChunkTimestamp(x, z, e.timestamp);
+                batch.add(e.data);
+            }
+            else {
+                rf.deleteChunk(x, z);
+            }
+        }
+        rf.writeChunks(batch);
+    }
+}
@@ -1,28 +1,103 @@
 package com.mikeprimm.WorldMapper;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 import org.spout.nbt.Tag;
 import org.spout.nbt.stream.NBTInputStream;
 import org.spout.nbt.stream.NBTOutputStream;
 
 public class RegionFile {
+    private static final byte[] ZEROS = new byte[4096];
+    public static final String JOURNAL_SUFFIX = ".wmj";
+    private static final int JOURNAL_MAGIC = 0x574D4A4C;   // "WMJL"
+    // Chunks rewritten or deleted by a journaled update in progress (see trackProgress())
+    public static final String PROGRESS_SUFFIX = ".wmp";
+    private static final int PROGRESS_MAGIC = 0x574D5052;  // "WMPR"
+    // Oversized chunks (over MAX_SECTORS) are stored in an external file (c.X.Z.mcc, by chunk coordinates, beside the
+    // region file), flagged by this bit in the encoding byte of a one sector stub
+    public static final int EXTERNAL = 0x80;
+    public static final String EXTERNAL_SUFFIX = ".mcc";
+    private static final int MAX_SECTORS = 255;
+
+    // Compressed chunk data, as stored in region file (see readChunkData() and writeChunks())
+    public static class ChunkData {
+        final int x, z;
+        final byte[] data;
+        final int len;
+        final int encoding; // 1=GZIP, 2=zlib
+        final File external;    // If set, data is in this file (oversized chunk) instead of data
+
+        public ChunkData(int x, int z, byte[] data, int len) {
+            this(x, z, data, len, 2);
+        }
+        public ChunkData(int x, int z, byte[] data, int len, int encoding) {
+            this.x = x;
+            this.z = z;
+            this.data = data;
+            this.len = len;
+            this.encoding = encoding;
+            this.external = null;
+        }
+        public ChunkData(int x, int z, File external, int encoding) {
+            this.x = x;
+            this.z = z;
+            this.data = null;
+            this.len = 0;
+            this.encoding = encoding;
+            this.external = external;
+        }
+    }
+
     private File rfile;
     private BitSet alloc_table = new BitSet();
     private int[] chunkoff = new int[1024];
     private int[] chunklen = new int[1024];
     private int[] timestamp = new int[1024];
     private RandomAccessFile raf;
+    private boolean readonly;
+    private byte[] rabuf;   // Read-ahead buffer, if enabled
+    private long rabase;    // File offset of read-ahead buffer
+    private int ralen;      // Valid bytes in read-ahead buffer
+    private boolean journaled;  // If set, header updates are deferred to commit(), and live sectors never overwritten
+    private BitSet committed = new BitSet();    // Sectors in use as of last load or commit
+    private long committedlen;  // File length as of last load or commit
+    private boolean dirty;      // Uncommitted header changes
+    private BitSet pendingext = new BitSet();   // Chunks with new external file under pending name, if journaled
+    private BitSet droppedext = new BitSet();   // Chunks whose external file is deleted at commit(), if journaled
+    private BitSet spilledext = new BitSet();   // Chunks encoded straight to external file, not yet written (see encodeChunk())
+    private boolean countinput; // If set, chunk reads count toward run progress
+    private BitSet progress;    // If set, chunks rewritten or deleted since tracking started (saved by commit())
     
     public RegionFile(File f) throws IOException {
+        this(f, false);
+    }
+    // Open region file - if readonly, file is never modified
+    public RegionFile(File f, boolean readonly) throws IOException {
         rfile = f;
+        this.readonly = readonly;
         if (rfile.exists()) {
             load();
         }
@@ -34,21 +109,74 @@ public class RegionFile {
         chunkoff = new int[1024];
         chunklen = new int[1024];
         timestamp = new int[1024];
-        if (raf != null) { try { raf.close(); } catch (IOException x) {};  raf = null; }
+        if (raf != null) {
+            if (dirty) {    // Uncommitted journaled changes: drop any new sectors past the committed end
+                try { raf.setLength(committedlen); } catch (IOException x) {};
+            }
+            try { raf.close(); } catch (IOException x) {};
+            raf = null;
+        }
+        for (int idx = pendingext.nextSetBit(0); idx >= 0; idx = pendingext.nextSetBit(idx + 1)) {  // Never committed
+            getPendingFile(getExternalFile(rfile, idx & 31, idx >> 5)).delete();
+        }
+        for (int idx = spilledext.nextSetBit(0); idx >= 0; idx = spilledext.nextSetBit(idx + 1)) {  // Never written
+            File f = getExternalFile(rfile, idx & 31, idx >> 5);
+            getSpillFile(f).delete();
+            if (!pendingext.get(idx)) {
+                getPendingFile(f).delete();
+            }
+        }
+        pendingext.clear();
+        droppedext.clear();
+        spilledext.clear();
+        ralen = 0;
+        dirty = false;
+        progress = null;
+    }
+
+    /**
+     * Enable read-ahead: chunk reads fetch this many bytes at once, so runs of adjacent chunks are served from one
+     * large read.  Best combined with reading chunks in sector order (getChunksBySector()).
+     * @param bytes - size of read-ahead buffer (0=disabled)
+     */
+    public void setReadAhead(int bytes) {
+        rabuf = (bytes > 0) ? new byte[bytes] : null;
+        ralen = 0;
+    }
+
+    // Count chunk reads toward run progress (for the source file a task is working through: see Metrics.addInput())
+    public void setCountInput(boolean count) {
+        countinput = count;
     }
     
+    // Create new, empty region file (replaces any existing file)
+    public void create() throws IOException {
+        cleanup();
+        RandomAccessFile f = new RandomAccessFile(rfile, "rw");
+        try {
+            f.setLength(0);
+            f.setLength(8192);  // Empty offset and timestamp tables
+        } finally {
+            f.close();
+        }
+        load();
+    }
+
     public void load() throws IOException {
         cleanup();
+        if (!readonly) {
+            recoverJournal(rfile);
+        }
         
         // Now create access file to read chunk
-        raf = new RandomAccessFile(rfile, "rw");
+        raf = new RandomAccessFile(rfile, readonly ? "r" : "rw");
         long initlen = raf.length();
         if (initlen < 8192) {   // Proper file needs to be at least 8192 bytes
             throw new IOException("Missing initial chunk tables: length=" + initlen);
         }
         byte[] buf = new byte[4096];
         // First 4K is chunk offset/length data
-        raf.read(buf);  // read bytes
+        raf.readFully(buf);
         for (int i = 0, boff = 0; i < 1024; i++) {
             for (int b = 0; b < 3; b++) {
                 chunkoff[i] = (chunkoff[i] << 8) | (255 & buf[boff++]);
@@ -65,23 +193,340 @@ public class RegionFile {
             }
         }
         // Next 4K is timestamps
-        raf.read(buf);  // read bytes
+        raf.readFully(buf);
         for (int i = 0, boff = 0; i < 1024; i++) {
             for (int b = 0; b < 4; b++) {
                 timestamp[i] = (timestamp[i] << 8) | (255 & buf[boff++]);
             }
         }
+        committed = (BitSet) alloc_table.clone();
+        committedlen = initlen;
+    }
+
+    /**
+     * Enable journaled mode, for updating a file in place.  Header (offset and timestamp table) changes are held in
+     * memory until commit(), and chunk data is only written to sectors not used by the committed header, so the file
+     * on disk is consistent at every point.  Changes not committed are discarded by cleanup().
+     */
+    public void setJournaled(boolean journaled) {
+        this.journaled = journaled;
+    }
+
+    /**
+     * Track progress of an update made in several commits: each commit() also saves the set of chunks rewritten or
+     * deleted so far (in a progress file beside the region, updated together with the header), so a run that dies part
+     * way through can tell which chunks it already changed.  Picks up the set left by an earlier, interrupted run.
+     */
+    public void trackProgress() throws IOException {
+        progress = readProgress(rfile);
+        if (progress == null) {
+            progress = new BitSet();
+        }
+    }
+
+    // Get progress file of given region file
+    public static File getProgressFile(File rfile) {
+        return new File(rfile.getPath() + PROGRESS_SUFFIX);
+    }
+
+    /**
+     * Read chunks recorded as rewritten or deleted by a tracked update of given region file (see trackProgress())
+     * @return chunk indices (x + 32*z), or null if no update is in progress
+     */
+    public static BitSet readProgress(File rfile) throws IOException {
+        File f = getProgressFile(rfile);
+        if (!f.exists()) return null;
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            if ((f.length() != (4 + 128)) || (in.readInt() != PROGRESS_MAGIC)) {
+                throw new IOException("Bad progress file " + f.getPath());
+            }
+            byte[] bits = new byte[128];
+            in.readFully(bits);
+            return BitSet.valueOf(bits);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Delete progress of tracked update (once the update is complete, and recorded as such)
+    public static void deleteProgress(File rfile) {
+        getProgressFile(rfile).delete();
+    }
+
+    // Write progress file (via temporary file and rename, so it is never seen partly written)
+    private static void writeProgress(File rfile, byte[] bits) throws IOException {
+        File f = getProgressFile(rfile);
+        File tmp = new File(rfile.getPath() + ".tmp" + PROGRESS_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(PROGRESS_MAGIC);
+            out.write(bits);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                throw new IOException("Cannot rename " + tmp.getPath() + " to " + f.getPath());
+            }
+        }
+    }
+
+    // Chunk set as stored (128 bytes, one bit per chunk)
+    private static byte[] progressImage(BitSet progress) {
+        byte[] bits = new byte[128];
+        byte[] v = progress.toByteArray();
+        System.arraycopy(v, 0, bits, 0, Math.min(v.length, bits.length));
+        return bits;
+    }
+
+    /**
+     * Commit journaled changes.  Chunk data is synced, then the new header (with the progress set, if tracked, and the
+     * external files written and dropped) is written to the journal file (with CRC) and synced, then written to the
+     * region file (and progress file) and synced, new external files are renamed into place and dropped ones deleted,
+     * then the journal is deleted.  A crash before the journal is complete leaves the old header and external files in
+     * place; a crash after is rolled forward by the next load().
+     */
+    public void commit() throws IOException {
+        if (!dirty) return;
+        File jfile = writeJournal();
+        raf.seek(0);
+        raf.write(headerImage());
+        raf.getChannel().force(true);
+        finishCommit(rfile, (progress != null) ? progressImage(progress) : null, pendingext, droppedext);
+        if (!jfile.delete()) {
+            throw new IOException("Cannot delete journal " + jfile.getPath());
+        }
+        pendingext.clear();
+        droppedext.clear();
+        committed = (BitSet) alloc_table.clone();
+        dirty = false;
+        // Trim free sectors at end of file
+        long end = 4096L * Math.max(2, alloc_table.length());
+        if (raf.length() > end) {
+            raf.setLength(end);
+        }
+        committedlen = raf.length();
+    }
+
+    // Steps of commit() after header is written (repeated by recoverJournal(), so each can be done twice)
+    private static void finishCommit(File rfile, byte[] progress, BitSet pendingext, BitSet droppedext) throws IOException {
+        if (progress != null) {
+            writeProgress(rfile, progress);
+        }
+        for (int idx = pendingext.nextSetBit(0); idx >= 0; idx = pendingext.nextSetBit(idx + 1)) {
+            File f = getExternalFile(rfile, idx & 31, idx >> 5);
+            File pf = getPendingFile(f);
+            if (pf.exists()) {  // (Else renamed before crash)
+                renameFile(pf, f);
+            }
+        }
+        for (int idx = droppedext.nextSetBit(0); idx >= 0; idx = droppedext.nextSetBit(idx + 1)) {  // No longer used
+            getExternalFile(rfile, idx & 31, idx >> 5).delete();
+        }
+    }
+
+    /**
+     * Sync chunk data, then write and sync journal of new header (first step of commit()).  Journal is magic, length
+     * of file before update, body length, body, CRC of body.  Body is header, chunks with pending external file (128
+     * bytes, one bit per chunk), chunks with dropped external file (same), then progress set (same) if tracked.
+     */
+    File writeJournal() throws IOException {
+        raf.getChannel().force(false);
+        BufferOutputStream body = new BufferOutputStream();
+        body.write(headerImage());
+        body.write(progressImage(pendingext));
+        body.write(progressImage(droppedext));
+        if (progress != null) {
+            body.write(progressImage(progress));
+        }
+        File jfile = new File(rfile.getPath() + JOURNAL_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(jfile);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            CRC32 crc = new CRC32();
+            crc.update(body.buf, 0, body.len);
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeLong(committedlen);
+            out.writeInt(body.len);
+            out.write(body.buf, 0, body.len);
+            out.writeLong(crc.getValue());
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        return jfile;
+    }
+
+    // Build offset and timestamp tables, as stored at start of file
+    private byte[] headerImage() {
+        byte[] buf = new byte[8192];
+        for (int i = 0, boff = 0; i < 1024; i++) {
+            int v = (chunkoff[i] << 8) | chunklen[i];
+            buf[boff] = (byte) (v >> 24);
+            buf[boff + 1] = (byte) (v >> 16);
+            buf[boff + 2] = (byte) (v >> 8);
+            buf[boff + 3] = (byte) v;
+            v = timestamp[i];
+            buf[boff + 4096] = (byte) (v >> 24);
+            buf[boff + 4097] = (byte) (v >> 16);
+            buf[boff + 4098] = (byte) (v >> 8);
+            buf[boff + 4099] = (byte) v;
+            boff += 4;
+        }
+        return buf;
+    }
+
+    // Finish or discard interrupted commit of given region file, if journal file present
+    public static void recoverJournal(File rfile) throws IOException {
+        File jfile = new File(rfile.getPath() + JOURNAL_SUFFIX);
+        if (!jfile.exists()) return;
+        byte[] hdr = new byte[8192];
+        byte[] body = null;
+        long origlen = -1;
+        boolean complete = false;
+        DataInputStream in = new DataInputStream(new FileInputStream(jfile));
+        try {
+            if ((jfile.length() >= 16) && (in.readInt() == JOURNAL_MAGIC)) {
+                origlen = in.readLong();
+                int len = in.readInt();
+                if ((len >= (hdr.length + 256)) && (jfile.length() == (4 + 8 + 4 + (long) len + 8))) {
+                    body = new byte[len];
+                    in.readFully(body);
+                    CRC32 crc = new CRC32();
+                    crc.update(body);
+                    complete = (in.readLong() == crc.getValue());
+                }
+            }
+        } finally {
+            in.close();
+        }
+        RandomAccessFile f = new RandomAccessFile(rfile, "rw");
+        try {
+            if (complete) {     // Journal complete: (re)write new header, then finish external files and progress set
+                System.arraycopy(body, 0, hdr, 0, hdr.length);
+                f.seek(0);
+                f.write(hdr);
+                f.getChannel().force(true);
+                int off = hdr.length;
+                BitSet pending = BitSet.valueOf(Arrays.copyOfRange(body, off, off + 128));
+                BitSet dropped = BitSet.valueOf(Arrays.copyOfRange(body, off + 128, off + 256));
+                byte[] prog = (body.length >= (off + 384)) ? Arrays.copyOfRange(body, off + 256, off + 384) : null;
+                finishCommit(rfile, prog, pending, dropped);
+                Log.warn("Region " + rfile.getPath() + ": interrupted update rolled forward from journal");
+            }
+            else {  // Header never touched: drop sectors added past end of old file (but never any the header uses)
+                f.seek(0);
+                f.readFully(hdr, 0, 4096);
+                long end = 8192;
+                for (int i = 0; i < 4096; i += 4) {
+                    int off = ((255 & hdr[i]) << 16) | ((255 & hdr[i + 1]) << 8) | (255 & hdr[i + 2]);
+                    end = Math.max(end, 4096L * (off + (255 & hdr[i + 3])));
+                }
+                end = Math.max(end, origlen);
+                if (f.length() > end) {
+                    f.setLength(end);
+                }
+                for (int idx = 0; idx < 1024; idx++) {  // External files never committed
+                    File ef = getExternalFile(rfile, idx & 31, idx >> 5);
+                    if (ef == null) break;
+                    getPendingFile(ef).delete();
+                }
+                Log.warn("Region " + rfile.getPath() + ": incomplete journal discarded, interrupted update rolled back");
+            }
+            f.getChannel().force(true);
+        } finally {
+            f.close();
+        }
+        if (!jfile.delete()) {
+            throw new IOException("Cannot delete journal " + jfile.getPath());
+        }
     }
     
     // Map X,Z chunk coord to index
     private final int getIndex(int x, int z) {
         return x + (z * 32);
     }
+
+    // Get external file for chunk (used if chunk is oversized)
+    public File getExternalFile(int x, int z) throws IOException {
+        File f = getExternalFile(rfile, x, z);
+        if (f == null) {
+            throw new IOException("Region file " + rfile.getPath() + " is not named r.X.Z.mca: external chunk file unknown");
+        }
+        return f;
+    }
+    /**
+     * Get external file for chunk of given region file, by region coordinates in its name (r.X.Z.mca, possibly with a
+     * working file suffix)
+     * @return file, or null if region file name has no coordinates
+     */
+    public static File getExternalFile(File regionfile, int x, int z) {
+        String[] tok = regionfile.getName().split("\\.");
+        if ((tok.length < 4) || !tok[0].equals("r") || !tok[3].equals("mca")) {
+            return null;
+        }
+        try {
+            int cx = (Integer.parseInt(tok[1]) * 32) + x;
+            int cz = (Integer.parseInt(tok[2]) * 32) + z;
+            return new File(regionfile.getAbsoluteFile().getParentFile(), "c." + cx + "." + cz + EXTERNAL_SUFFIX);
+        } catch (NumberFormatException nfx) {
+            return null;
+        }
+    }
+    // Delete all external chunk files of region file (and any pending ones), for when the region file itself is dropped
+    public static void deleteExternalFiles(File regionfile) {
+        for (int idx = 0; idx < 1024; idx++) {
+            File f = getExternalFile(regionfile, idx & 31, idx >> 5);
+            if (f == null) return;
+            f.delete();
+            getPendingFile(f).delete();
+        }
+    }
+    // Name external file is written under until commit(), if journaled
+    private static File getPendingFile(File f) {
+        return new File(f.getPath() + JOURNAL_SUFFIX);
+    }
+    // Rename file, replacing any existing file
+    private static void renameFile(File src, File dest) throws IOException {
+        if (!src.renameTo(dest)) {
+            dest.delete();     // Some platforms will not rename over existing file
+            if (!src.renameTo(dest)) {
+                throw new IOException("Cannot rename " + src.getPath() + " to " + dest.getPath());
+            }
+        }
+    }
+    // Sectors needed for chunk of given compressed length
+    private static int sectorsFor(int clen) {
+        return ((clen + 5) / 4096) + 1;
+    }
     
+    // Get chunk timestamp
+    public int getChunkTimestamp(int x, int z) {
+        return timestamp[getIndex(x, z)];
+    }
+
+    // Set chunk timestamp, without writing it: written by next writeChunks() (or commit(), if journaled)
+    public void setChunkTimestamp(int x, int z, int timestamp) {
+        this.timestamp[getIndex(x, z)] = timestamp;
+        if (journaled) {
+            dirty = true;
+        }
+    }
+
     // Write chunk timestamp
     public void writeChunkTimestamp(int x, int z, int timestamp) throws IOException {
         int idx = getIndex(x, z);
         this.timestamp[idx] = timestamp;
+        if (journaled) {
+            dirty = true;
+            return;
+        }
         raf.seek(4096L + (idx*4));
         raf.writeInt(timestamp);
     }
@@ -91,10 +536,60 @@ public class RegionFile {
         int idx = getIndex(x, z);
         this.chunkoff[idx] = off;
         this.chunklen[idx] = cnt;
+        if (journaled) {
+            dirty = true;
+            return;
+        }
         raf.seek(idx*4L);
         raf.writeInt((off << 8) | cnt);
     }
     
+    /**
+     * Get present chunks, in order of their position in the file
+     * @return chunk indices (x + 32*z)
+     */
+    public int[] getChunksBySector() {
+        long[] keys = new long[getChunkCount()];
+        int cnt = 0;
+        for (int i = 0; i < 1024; i++) {
+            if ((chunkoff[i] > 0) && (chunklen[i] > 0)) {
+                keys[cnt++] = ((long) chunkoff[i] << 10) | i;
+            }
+        }
+        Arrays.sort(keys);
+        int[] idx = new int[cnt];
+        for (int i = 0; i < cnt; i++) {
+            idx[i] = (int) (keys[i] & 0x3FF);
+        }
+        return idx;
+    }
+
+    /**
+     * Get present chunks, in z-major order (rows of increasing x)
+     * @return chunk indices (x + 32*z)
+     */
+    public int[] getChunksByIndex() {
+        int[] idx = new int[getChunkCount()];
+        int cnt = 0;
+        for (int i = 0; i < 1024; i++) {
+            if ((chunkoff[i] > 0) && (chunklen[i] > 0)) {
+                idx[cnt++] = i;
+            }
+        }
+        return idx;
+    }
+
+    // Get number of chunks present
+    public int getChunkCount() {
+        int cnt = 0;
+        for (int i = 0; i < 1024; i++) {
+            if ((chunkoff[i] > 0) && (chunklen[i] > 0)) {
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+
     // Check if chunk exists
     public boolean chunkExists(int x, int z) {
         if ((x < 0) || (x > 31) || (z < 0) || (z > 31)) {
@@ -106,6 +601,15 @@ public class RegionFile {
     
     // Read chunk, return as data stream
     public Tag<?> readChunk(int x, int z) throws IOException {
+        ChunkData cd = readChunkData(x, z);
+        if (cd == null) {
+            return null;
+        }
+        return decodeChunk(cd);
+    }
+
+    // Read chunk compressed data, without decoding it
+    public ChunkData readChunkData(int x, int z) throws IOException {
         // Sanity check chunk coordinates
         if ((x < 0) || (x > 31) || (z < 0) || (z > 31)) {
             return null;
@@ -114,65 +618,312 @@ public class RegionFile {
         if (chunkoff[idx] <= 0) {   // Unallocated chunk?
             return null;
         }
+        long tstart = Metrics.start();
         long baseoff = 4096L * chunkoff[idx];   // Get offset
         int cnt = chunklen[idx]; // Get chunk count
-        raf.seek(baseoff);  // Seek to chunk
-        int clen = raf.readInt();   // Read chunk byte count
+        byte[] hdr = new byte[5];
+        readAt(baseoff, hdr, 0, 5);
+        int clen = ((255 & hdr[0]) << 24) | ((255 & hdr[1]) << 16) | ((255 & hdr[2]) << 8) | (255 & hdr[3]);   // Read chunk byte count
         if ((clen > (cnt * 4096)) || (clen <= 0)) {  // Not enough data?
             throw new IOException("Length longer than space: " + clen + " > " + (cnt * 4096));
         }
-        int encoding = raf.readByte(); // Get encoding for chunk
-        byte[] buf = null;
+        if ((baseoff + 4 + clen) > raf.length()) {  // Truncated file?
+            throw new IOException("Chunk data past end of file: " + (baseoff + 4 + clen) + " > " + raf.length());
+        }
+        int encoding = 255 & hdr[4]; // Get encoding for chunk
+        if ((encoding & EXTERNAL) != 0) {   // Oversized: data is in external file
+            encoding &= ~EXTERNAL;
+            if ((encoding != 1) && (encoding != 2)) {
+                throw new IOException("Bad encoding=" + encoding);
+            }
+            File ext = getExternalFile(x, z);
+            if (pendingext.get(idx)) {  // Written since last commit
+                ext = getPendingFile(ext);
+            }
+            if (!ext.isFile()) {
+                throw new IOException("Missing external chunk file " + ext.getPath());
+            }
+            Metrics.stop(Metrics.Stage.READ, tstart);
+            Metrics.add(Metrics.Counter.BYTES_READ, ext.length());
+            Metrics.add(Metrics.Counter.CHUNKS_READ, 1);
+            Metrics.chunkSize.record(ext.length());
+            if (countinput) Metrics.addInput(cnt * 4096L);
+            return new ChunkData(x, z, ext, encoding);
+        }
+        if ((encoding != 1) && (encoding != 2)) {
+            throw new IOException("Bad encoding=" + encoding);
+        }
+        byte[] buf = new byte[clen - 1];   // Get buffer for bytes (length has 1 extra)
+        readAt(baseoff + 5, buf, 0, clen - 1);  // Read whole compressed chunk
+        Metrics.stop(Metrics.Stage.READ, tstart);
+        Metrics.add(Metrics.Counter.BYTES_READ, clen + 4);
+        Metrics.add(Metrics.Counter.CHUNKS_READ, 1);
+        Metrics.chunkSize.record(clen + 4);
+        if (countinput) Metrics.addInput(cnt * 4096L);
+
+        return new ChunkData(x, z, buf, buf.length, encoding);
+    }
+
+    // Read bytes at given file offset, using read-ahead buffer if enabled
+    private void readAt(long pos, byte[] b, int off, int len) throws IOException {
+        if ((rabuf == null) || (len > rabuf.length)) {
+            raf.seek(pos);
+            raf.readFully(b, off, len);
+            return;
+        }
+        if ((pos < rabase) || ((pos + len) > (rabase + ralen))) {   // Not in buffer: fill buffer starting at pos
+            int n = (int) Math.min(rabuf.length, raf.length() - pos);
+            if (n < len) {
+                throw new IOException("Read past end of file: " + (pos + len) + " > " + raf.length());
+            }
+            raf.seek(pos);
+            raf.readFully(rabuf, 0, n);
+            rabase = pos;
+            ralen = n;
+        }
+        System.arraycopy(rabuf, (int) (pos - rabase), b, off, len);
+    }
+
+    // Decompress and parse chunk data, from memory or external file
+    public static Tag<?> decodeChunk(ChunkData cd) throws IOException {
+        if (cd.external != null) {
+            return decodeExternalChunk(cd.external, cd.encoding);
+        }
+        return decodeChunk(cd.data, cd.len, cd.encoding);
+    }
+    // Decompress and parse chunk from external file, streaming: oversized chunks are never held whole in memory
+    private static Tag<?> decodeExternalChunk(File f, int encoding) throws IOException {
+        long tstart = Metrics.start();
+        InputStream in = new BufferedInputStream(new FileInputStream(f), 65536);
+        try {
+            switch (encoding) {
+                case 1:
+                    in = new GZIPInputStream(in, 65536);
+                    break;
+                case 2:
+                    in = new InflaterInputStream(in);
+                    break;
+                default:
+                    throw new IOException("Bad encoding=" + encoding);
+            }
+            NBTInputStream nis = new NBTInputStream(new BufferedInputStream(in, 65536), false);
+            return nis.readTag();
+        } finally {
+            in.close();
+            Metrics.stop(Metrics.Stage.DECODE, tstart);
+        }
+    }
+    /**
+     * Decompress and parse chunk data with given encoding (1=GZIP, 2=zlib).  The inflater streams straight into the NBT
+     * parser, so the uncompressed chunk is never held whole; both are timed as the decode stage.
+     */
+    public static Tag<?> decodeChunk(byte[] buf, int len, int encoding) throws IOException {
+        long tstart = Metrics.start();
+        Inflater inf = null;
         InputStream in = null;
         switch (encoding) {
             case 1:
-                buf = new byte[clen - 1];   // Get buffer for bytes (length has 1 extra)
-                raf.read(buf);  // Read whole compressed chunk
-                // And return stream to decompress it
-                in = new GZIPInputStream(new ByteArrayInputStream(buf));
+                in = new GZIPInputStream(new ByteArrayInputStream(buf, 0, len));
                 break;
             case 2:
-                buf = new byte[clen - 1];   // Get buffer for bytes (length has 1 extra)
-                raf.read(buf);  // Read whole compressed chunk
-                in = new InflaterInputStream(new ByteArrayInputStream(buf));
+                inf = new Inflater();
+                in = new InflaterInputStream(new ByteArrayInputStream(buf, 0, len), inf);
                 break;
             default:
                 throw new IOException("Bad encoding=" + encoding);
         }
-        NBTInputStream nis = new NBTInputStream(in, false);
+        NBTInputStream nis = new NBTInputStream(new BufferedInputStream(in, 8192), false);
         try {
             return nis.readTag();
         } finally {
             nis.close();
+            if (inf != null) {
+                Metrics.add(Metrics.Counter.BYTES_INFLATED, inf.getBytesWritten());
+                inf.end();
+            }
+            Metrics.stop(Metrics.Stage.DECODE, tstart);
+        }
+    }
+
+    /**
+     * Serialize and compress chunk NBT (zlib encoding).  The NBT writer streams through the deflater, so the uncompressed
+     * chunk is never held whole.  Time spent in the deflater is counted as the deflate stage, the rest as encode.
+     */
+    public static BufferOutputStream encodeChunk(Tag<?> lvl) throws IOException {
+        BufferOutputStream baos = new BufferOutputStream();
+        encodeChunk(lvl, baos);
+        return baos;
+    }
+    // Serialize and compress chunk NBT (zlib encoding) to given stream (which is closed when done)
+    static void encodeChunk(Tag<?> lvl, OutputStream out) throws IOException {
+        long tstart = Metrics.start();
+        Deflater def = new Deflater();
+        TimedOutputStream tos = new TimedOutputStream(new DeflaterOutputStream(out, def, 8192));
+        NBTOutputStream nbtos = new NBTOutputStream(new BufferedOutputStream(tos, 8192), false);
+        try {
+            nbtos.writeTag(lvl);
+        } finally {
+            nbtos.close();
+            Metrics.add(Metrics.Counter.BYTES_ENCODED, def.getBytesRead());
+            def.end();
+        }
+        Metrics.record(Metrics.Stage.ENCODE, System.nanoTime() - tstart - tos.nanos);
+        Metrics.record(Metrics.Stage.DEFLATE, tos.nanos);
+    }
+    // Stream that passes writes through, and adds up time spent in them (fed by a buffered stream, so writes are large)
+    private static class TimedOutputStream extends FilterOutputStream {
+        long nanos;
+
+        TimedOutputStream(OutputStream out) {
+            super(out);
+        }
+        @Override
+        public void write(int b) throws IOException {
+            long t = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - t;
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long t = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - t;
+        }
+        @Override
+        public void close() throws IOException {
+            long t = System.nanoTime();
+            out.close();    // Finishes deflater
+            nanos += System.nanoTime() - t;
+        }
+    }
+
+    /**
+     * Serialize and compress chunk NBT, for writing to this file with writeChunks().  Data is held in memory until it
+     * passes MAX_SECTORS: an oversized chunk is then streamed to its external file instead (under its pending name if
+     * journaled, else a temporary one), so it is never held whole.  writeChunks() puts that file in place.
+     */
+    public ChunkData encodeChunk(int x, int z, Tag<?> lvl) throws IOException {
+        File f = getExternalFile(rfile, x, z);
+        if (f == null) {    // No external file name: held in memory (and refused by writeChunks(), if oversized)
+            BufferOutputStream baos = encodeChunk(lvl);
+            return new ChunkData(x, z, baos.buf, baos.len);
+        }
+        int idx = getIndex(x, z);
+        // Pending file of an uncommitted write is still live: spill to temporary file then
+        File sf = (journaled && !pendingext.get(idx)) ? getPendingFile(f) : getSpillFile(f);
+        SpillOutputStream out = new SpillOutputStream(MAX_SECTORS * 4096, sf);
+        boolean done = false;
+        try {
+            encodeChunk(lvl, out);
+            done = true;
+        } finally {
+            if ((out.fos != null) && !done) {
+                sf.delete();
+            }
+        }
+        if (out.fos == null) {
+            return new ChunkData(x, z, out.buf.buf, out.buf.len);
+        }
+        spilledext.set(idx);
+        return new ChunkData(x, z, sf, 2);
+    }
+    // Temporary name of external file, while written
+    private static File getSpillFile(File f) {
+        return new File(f.getPath() + ".tmp");
+    }
+    // Stream that collects data in memory, and moves it to a file (synced at close) once it grows past a limit
+    private static class SpillOutputStream extends OutputStream {
+        private final int limit;
+        private final File file;
+        BufferOutputStream buf = new BufferOutputStream();
+        FileOutputStream fos;   // Set once moved to file
+
+        SpillOutputStream(int limit, File file) {
+            this.limit = limit;
+            this.file = file;
+        }
+        @Override
+        public void write(int b) throws IOException {
+            if ((fos == null) && (buf.len >= limit)) {
+                spill();
+            }
+            if (fos != null) {
+                fos.write(b);
+            }
+            else {
+                buf.write(b);
+            }
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if ((fos == null) && ((buf.len + len) > limit)) {
+                spill();
+            }
+            if (fos != null) {
+                fos.write(b, off, len);
+            }
+            else {
+                buf.write(b, off, len);
+            }
+        }
+        private void spill() throws IOException {
+            fos = new FileOutputStream(file);
+            fos.write(buf.buf, 0, buf.len);
+            buf = null;
+        }
+        @Override
+        public void close() throws IOException {
+            if (fos != null) {
+                try {
+                    fos.getFD().sync();
+                } finally {
+                    fos.close();
+                }
+            }
         }
     }
+
     // Write chunk NBT to file
     public boolean writeChunk(int x, int z, Tag<?> lvl) throws IOException {
         // Sanity check chunk coordinates
         if ((x < 0) || (x > 31) || (z < 0) || (z > 31)) {
             return false;
         }
-        
-        BufferOutputStream baos = new BufferOutputStream();
-        DeflaterOutputStream dos = new DeflaterOutputStream(baos);
-        NBTOutputStream nbtos = new NBTOutputStream(dos, false);
-        try {
-            nbtos.writeTag(lvl);
-        } finally {
-            nbtos.close();
+        ChunkData cd = encodeChunk(x, z, lvl);
+        if (cd.external != null) {  // Oversized: already in (temporary) external file
+            writeChunks(Collections.singletonList(cd));
+            return true;
         }
-        byte[] cbytes = baos.buf;
-        int clen = baos.len;
-        
+        return writeChunkData(x, z, cd.data, cd.len);
+    }
+
+    // Write compressed (zlib) chunk data to file
+    public boolean writeChunkData(int x, int z, byte[] cbytes, int clen) throws IOException {
+        // Sanity check chunk coordinates
+        if ((x < 0) || (x > 31) || (z < 0) || (z > 31)) {
+            return false;
+        }
+        int newlen = sectorsFor(clen);
+        if (newlen > MAX_SECTORS) {     // Oversized: goes to external file
+            writeChunks(Collections.singletonList(new ChunkData(x, z, cbytes, clen)));
+            return true;
+        }
+        dropExternal(x, z);
+        long tstart = Metrics.start();
         int idx = getIndex(x, z);   // Get index
         int curoff = this.chunkoff[idx];
         int curlen = this.chunklen[idx];
-        int newlen = ((clen + 5) / 4096) + 1;
 
         // If allocated 
         if (curoff > 0) {
+            // If journaled, never overwrite: free it
+            if (journaled) {
+                this.alloc_table.clear(curoff, curoff + curlen);
+                curoff = 0;
+                curlen = 0;
+            }
             // If right size, we're good to reuse
-            if (newlen == curlen) {
+            else if (newlen == curlen) {
             }
             // If need more space, free it
             else if (newlen > curlen) {
@@ -196,7 +947,7 @@ public class RegionFile {
             int off;
             // Find big enough space
             for (off = 2, cnt = 0; cnt < newlen; off++) {
-                if (alloc_table.get(off)) {  // Allocated?
+                if (alloc_table.get(off) || (journaled && committed.get(off))) {  // Allocated?
                     cnt = 0;
                     curoff = 0;
                 }
@@ -215,19 +966,222 @@ public class RegionFile {
                 alloc_table.set(off);
             }
             curlen = newlen;
+            Metrics.add(Metrics.Counter.SECTORS_ALLOCATED, newlen);
+        }
+        Metrics.stop(Metrics.Stage.ALLOC, tstart);
+        
+        tstart = Metrics.start();
+        // Drop read-ahead data if overwriting it
+        if ((ralen > 0) && ((4096L * curoff) < (rabase + ralen)) && ((4096L * (curoff + curlen)) > rabase)) {
+            ralen = 0;
         }
         // Check if long enough
         if (raf.length() < (4096L * (curoff + curlen))) {
             raf.setLength(4096L * (curoff + curlen));
+            Metrics.add(Metrics.Counter.FILE_GROWTHS, 1);
         }
         raf.seek(4096L * curoff);
         raf.writeInt(clen + 1);
         raf.writeByte(2);
         raf.write(cbytes, 0, clen);
         writeChunkOffsetCnt(x, z, curoff, curlen);
+        Metrics.stop(Metrics.Stage.WRITE, tstart);
+        Metrics.add(Metrics.Counter.BYTES_WRITTEN, clen + 5);
+        if (progress != null) {
+            progress.set(idx);
+        }
         
         return true;
     }
+    /**
+     * Write group of compressed chunks.  Old space of the chunks is freed, one contiguous extent is allocated for the
+     * whole group, the file is extended at most once, and chunk data goes out in one gathering write followed by one
+     * write of the header (offset and timestamp tables).  Oversized chunks (and chunks read from external files) are
+     * written to their external file, with a one sector stub in the region file.
+     */
+    public void writeChunks(List<ChunkData> chunks) throws IOException {
+        if (chunks.isEmpty()) return;
+        long tstart = Metrics.start();
+        int total = 0;
+        for (ChunkData pc : chunks) {
+            if ((pc.x < 0) || (pc.x > 31) || (pc.z < 0) || (pc.z > 31)) {
+                throw new IOException("Bad chunk coordinates: " + pc.x + "," + pc.z);
+            }
+            int idx = getIndex(pc.x, pc.z);
+            // Free current space
+            if (chunkoff[idx] > 0) {
+                alloc_table.clear(chunkoff[idx], chunkoff[idx] + chunklen[idx]);
+            }
+            if ((pc.external != null) || (sectorsFor(pc.len) > MAX_SECTORS)) {
+                writeExternal(pc);
+                total += 1;
+            }
+            else {
+                dropExternal(pc.x, pc.z);
+                total += sectorsFor(pc.len);
+            }
+        }
+        // Find first free run big enough for all of them
+        BitSet used = alloc_table;
+        if (journaled) {    // Sectors of committed header are still live
+            used = (BitSet) alloc_table.clone();
+            used.or(committed);
+        }
+        int base = 2;
+        while (true) {
+            base = used.nextClearBit(base);
+            int next = used.nextSetBit(base);
+            if ((next < 0) || ((next - base) >= total)) break;
+            base = next;
+        }
+        alloc_table.set(base, base + total);
+        Metrics.add(Metrics.Counter.SECTORS_ALLOCATED, total);
+        Metrics.stop(Metrics.Stage.ALLOC, tstart);
+
+        tstart = Metrics.start();
+        long start = 4096L * base;
+        long end = 4096L * (base + total);
+        // Drop read-ahead data if overwriting it
+        if ((ralen > 0) && (start < (rabase + ralen)) && (end > rabase)) {
+            ralen = 0;
+        }
+        if (raf.length() < end) {
+            raf.setLength(end);
+            Metrics.add(Metrics.Counter.FILE_GROWTHS, 1);
+        }
+        ByteBuffer[] bufs = new ByteBuffer[3 * chunks.size()];
+        int off = base;
+        int b = 0;
+        long bytes = 0;
+        for (ChunkData pc : chunks) {
+            boolean ext = (pc.external != null) || (sectorsFor(pc.len) > MAX_SECTORS);
+            int len = ext ? 0 : pc.len;
+            int cnt = sectorsFor(len);
+            ByteBuffer hdr = ByteBuffer.allocate(5);
+            hdr.putInt(len + 1);
+            hdr.put((byte) (ext ? (pc.encoding | EXTERNAL) : pc.encoding));
+            hdr.flip();
+            bufs[b++] = hdr;
+            bufs[b++] = ByteBuffer.wrap(ext ? ZEROS : pc.data, 0, len);
+            bufs[b++] = ByteBuffer.wrap(ZEROS, 0, (cnt * 4096) - (len + 5));
+            int idx = getIndex(pc.x, pc.z);
+            chunkoff[idx] = off;
+            chunklen[idx] = cnt;
+            if (progress != null) {
+                progress.set(idx);
+            }
+            off += cnt;
+            bytes += len + 5;
+        }
+        FileChannel ch = raf.getChannel();
+        ch.position(start);
+        long left = end - start;
+        while (left > 0) {
+            left -= ch.write(bufs);
+        }
+        writeHeader();
+        Metrics.stop(Metrics.Stage.WRITE, tstart);
+        Metrics.add(Metrics.Counter.BYTES_WRITTEN, bytes);
+    }
+
+    /**
+     * Write chunk data to its external file (via temporary file and rename).  If journaled, it is written under a
+     * pending name that commit() renames into place, so the committed external file is untouched until then.
+     */
+    private void writeExternal(ChunkData pc) throws IOException {
+        File f = getExternalFile(pc.x, pc.z);
+        int idx = getIndex(pc.x, pc.z);
+        droppedext.clear(idx);
+        if ((pc.external != null) && pc.external.getCanonicalFile().equals(f.getCanonicalFile())) {
+            if (pendingext.get(idx)) {  // Back to committed data
+                getPendingFile(f).delete();
+                pendingext.clear(idx);
+            }
+            return; // Already in place
+        }
+        File tmp = journaled ? getPendingFile(f) : getSpillFile(f);
+        long bytes;
+        if (spilledext.get(idx) && (pc.external != null) &&
+            (pc.external.equals(getPendingFile(f)) || pc.external.equals(getSpillFile(f)))) {   // Written by encodeChunk()
+            spilledext.clear(idx);
+            if (!pc.external.equals(tmp)) {
+                renameFile(pc.external, tmp);
+            }
+            bytes = tmp.length();
+        }
+        else {
+            bytes = copyExternal(pc, tmp);
+        }
+        if (journaled) {
+            pendingext.set(idx);
+        }
+        else {
+            try {
+                renameFile(tmp, f);
+            } catch (IOException iox) {
+                tmp.delete();
+                throw iox;
+            }
+        }
+        Metrics.add(Metrics.Counter.BYTES_WRITTEN, bytes);
+        Metrics.add(Metrics.Counter.CHUNKS_EXTERNAL, 1);
+    }
+    // Write chunk data (in memory, or copy of other external file) to given file: returns bytes written
+    private static long copyExternal(ChunkData pc, File tmp) throws IOException {
+        FileOutputStream out = new FileOutputStream(tmp);
+        long bytes;
+        try {
+            if (pc.external != null) {  // Copy of chunk from another region's external file
+                FileInputStream in = new FileInputStream(pc.external);
+                try {
+                    FileChannel ich = in.getChannel();
+                    long size = ich.size();
+                    for (long pos = 0; pos < size; ) {
+                        pos += ich.transferTo(pos, size - pos, out.getChannel());
+                    }
+                    bytes = size;
+                } finally {
+                    in.close();
+                }
+            }
+            else {
+                out.write(pc.data, 0, pc.len);
+                bytes = pc.len;
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        return bytes;
+    }
+    // Chunk no longer stored externally: delete any external file (at commit(), if journaled)
+    private void dropExternal(int x, int z) {
+        File f = getExternalFile(rfile, x, z);
+        if (f == null) return;
+        if (journaled) {
+            int idx = getIndex(x, z);
+            if (pendingext.get(idx)) {  // Written since last commit
+                getPendingFile(f).delete();
+                pendingext.clear(idx);
+            }
+            if (f.exists()) {
+                droppedext.set(idx);
+            }
+        }
+        else if (f.exists()) {
+            f.delete();
+        }
+    }
+    // Write whole header (chunk offset/count and timestamp tables)
+    private void writeHeader() throws IOException {
+        if (journaled) {
+            dirty = true;
+            return;
+        }
+        raf.seek(0);
+        raf.write(headerImage());
+    }
+
     // Delete chunk
     public boolean deleteChunk(int x, int z) throws IOException {
         // Sanity check chunk coordinates
@@ -244,8 +1198,12 @@ public class RegionFile {
             for (int off = curoff; off < (curoff + curlen); off++) {
                 this.alloc_table.clear(off);
             }
+            dropExternal(x, z);
         }
         writeChunkOffsetCnt(x, z, 0, 0);
+        if (progress != null) {
+            progress.set(idx);
+        }
         
         return true;
     }
@@ -0,0 +1,200 @@
+package com.mikeprimm.WorldMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a world directory for changed region files, and hands them to a handler on worker threads.
+ *
+ * Changes are debounced: a file is only handed off once it has had no change events for the debounce interval, so a
+ * burst of saves is handled once.  Ready files go through a bounded queue (watching pauses while it is full), and a
+ * file is never handled by two workers at once - changes seen while it is being handled queue it again afterwards.
+ */
+public class RegionWatcher {
+    // Called for each changed (or deleted) region file
+    public interface Handler {
+        void regionChanged(File f) throws IOException;
+    }
+
+    private final File root;
+    private final long debounce;
+    private final Handler handler;
+    private final WatchService ws;
+    private final Map<WatchKey, File> keys = new HashMap<WatchKey, File>();
+    private final BlockingQueue<File> queue;
+    private final Map<File, Long> pending = new LinkedHashMap<File, Long>();   // Files waiting out debounce, by last event time
+    private final Set<File> busy = new HashSet<File>();     // Files queued or being handled
+    private final Set<File> again = new HashSet<File>();    // Busy files changed again
+
+    public RegionWatcher(File root, long debouncems, int queuesize, Handler handler) throws IOException {
+        this.root = root;
+        this.debounce = debouncems;
+        this.handler = handler;
+        this.queue = new ArrayBlockingQueue<File>(Math.max(1, queuesize));
+        this.ws = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Watch until interrupted.  All region files are handled once at start, to catch up with changes made while not
+     * watching.
+     */
+    public void run(int threads) throws IOException {
+        register(root);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread("watch-worker-" + (i + 1)) {
+                public void run() {
+                    work();
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+        Log.info("Watching " + root.getPath() + " (" + keys.size() + " directories)");
+        try {
+            while (true) {
+                WatchKey key = ws.poll(nextDue(), TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handleEvents(key);
+                    key = ws.poll();
+                }
+                queueReady();
+            }
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ws.close();
+        }
+    }
+
+    // Register directory and subdirectories, and mark region files in them as changed
+    private void register(File dir) throws IOException {
+        WatchKey key = dir.toPath().register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+        keys.put(key, dir);
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (f.isDirectory()) {
+                register(f);
+            }
+            else if (f.getName().endsWith(".mca")) {
+                changed(f, 0);
+            }
+        }
+    }
+
+    private void handleEvents(WatchKey key) throws IOException {
+        File dir = keys.get(key);
+        long now = System.currentTimeMillis();
+        for (WatchEvent<?> ev : key.pollEvents()) {
+            if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {    // Lost events: recheck everything
+                Log.warn("Watch events lost: rescanning " + root.getPath());
+                for (File d : new HashSet<File>(keys.values())) {
+                    File[] files = d.listFiles();
+                    if (files == null) continue;
+                    for (File f : files) {
+                        if (f.getName().endsWith(".mca")) changed(f, now);
+                    }
+                }
+                continue;
+            }
+            if (dir == null) continue;
+            File f = new File(dir, ((Path) ev.context()).toString());
+            if (f.isDirectory()) {
+                if (ev.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    register(f);
+                }
+            }
+            else if (f.getName().endsWith(".mca")) {
+                changed(f, now);
+            }
+        }
+        if (!key.reset()) {     // Directory gone
+            keys.remove(key);
+        }
+    }
+
+    // Note change to file at given time
+    private synchronized void changed(File f, long time) {
+        if (busy.contains(f)) {
+            again.add(f);
+        }
+        else {
+            pending.remove(f);  // Keep in order of last change
+            pending.put(f, time);
+        }
+    }
+
+    // Milliseconds until next pending file is due
+    private synchronized long nextDue() {
+        if (pending.isEmpty()) return 1000;
+        long first = Long.MAX_VALUE;
+        for (long t : pending.values()) {
+            first = Math.min(first, t);
+        }
+        return Math.max(1, Math.min(1000, (first + debounce) - System.currentTimeMillis()));
+    }
+
+    // Queue files whose debounce interval has passed (blocks while queue is full)
+    private void queueReady() throws InterruptedException {
+        while (true) {
+            File ready = null;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                Iterator<Map.Entry<File, Long>> iter = pending.entrySet().iterator();
+                while (iter.hasNext()) {
+                    Map.Entry<File, Long> e = iter.next();
+                    if ((e.getValue() + debounce) <= now) {
+                        ready = e.getKey();
+                        iter.remove();
+                        busy.add(ready);
+                        break;
+                    }
+                }
+            }
+            if (ready == null) return;
+            queue.put(ready);
+        }
+    }
+
+    // Worker thread: handle queued files
+    private void work() {
+        try {
+            while (true) {
+                File f = queue.take();
+                try {
+                    handler.regionChanged(f);
+                } catch (IOException iox) {   // Likely caught mid-write: try again later
+                    Log.event(Log.Level.WARN, "watch-retry", "Region %s: %s - will retry", f.getPath(), iox.getMessage());
+                    synchronized (this) {
+                        again.add(f);
+                    }
+                } catch (RuntimeException rx) {
+                    Log.error("Region " + f.getPath() + ": " + rx);
+                }
+                synchronized (this) {
+                    busy.remove(f);
+                    if (again.remove(f)) {
+                        pending.put(f, System.currentTimeMillis());
+                    }
+                }
+            }
+        } catch (InterruptedException ix) {
+        }
+    }
+}
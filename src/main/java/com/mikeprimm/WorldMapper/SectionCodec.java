@@ -0,0 +1,84 @@
+package com.mikeprimm.WorldMapper;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Legacy chunk section codec: Blocks (byte per block), Add and Data (nibble per block, even index in low nibble).
+ *
+ * Arrays are read and written a word at a time: 8 blocks are one long of Blocks and one int each of Add and Data, so
+ * expanding to ID*16+meta values takes 512 word reads per array, and repacking only touches words with changed blocks.
+ */
+public class SectionCodec {
+    public static final int WORDS = 512;    // 8 block words per section
+
+    // Scratch ID*16+meta array, reused by each thread
+    private static final ThreadLocal<short[]> scratch = new ThreadLocal<short[]>() {
+        protected short[] initialValue() {
+            return new short[4096];
+        }
+    };
+
+    // Get scratch array for calling thread (contents are whatever was last unpacked)
+    public static short[] getScratch() {
+        return scratch.get();
+    }
+
+    // Expand section into ID*16+meta values (YZX order) - ext may be null
+    public static void unpack(byte[] blocks, byte[] ext, byte[] data, short[] out) {
+        LongBuffer bw = ByteBuffer.wrap(blocks).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        IntBuffer dw = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        IntBuffer ew = (ext != null) ? ByteBuffer.wrap(ext).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer() : null;
+        for (int w = 0, i = 0; w < WORDS; w++) {
+            long b = bw.get(w);
+            int d = dw.get(w);
+            int e = (ew != null) ? ew.get(w) : 0;
+            for (int k = 0; k < 8; k++, i++) {
+                int id = ((int) (b >>> (k << 3)) & 0xFF) | (((e >>> (k << 2)) & 0xF) << 8);
+                out[i] = (short) ((id << 4) | ((d >>> (k << 2)) & 0xF));
+            }
+        }
+    }
+
+    // Flag block at given index as changed, in dirty word set (long[WORDS / 64])
+    public static void markDirty(long[] dirty, int i) {
+        dirty[i >>> 9] |= 1L << ((i >>> 3) & 63);
+    }
+
+    /**
+     * Repack words flagged in dirty word set from ID*16+meta values.
+     * @return Add array: ext, or new array if ext is null and a changed block needs it (null if none needed)
+     */
+    public static byte[] pack(short[] cells, long[] dirty, byte[] blocks, byte[] ext, byte[] data) {
+        LongBuffer bw = ByteBuffer.wrap(blocks).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        IntBuffer dw = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        IntBuffer ew = (ext != null) ? ByteBuffer.wrap(ext).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer() : null;
+        for (int g = 0; g < dirty.length; g++) {
+            long bits = dirty[g];
+            while (bits != 0) {
+                int w = (g << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                long b = 0;
+                int d = 0, e = 0;
+                for (int k = 0, i = w << 3; k < 8; k++, i++) {
+                    int v = cells[i] & 0xFFFF;
+                    b |= (long) ((v >> 4) & 0xFF) << (k << 3);
+                    e |= (v >>> 12) << (k << 2);
+                    d |= (v & 0xF) << (k << 2);
+                }
+                bw.put(w, b);
+                dw.put(w, d);
+                if ((ew == null) && (e != 0)) {
+                    ext = new byte[2048];
+                    ew = ByteBuffer.wrap(ext).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                }
+                if (ew != null) {
+                    ew.put(w, e);
+                }
+            }
+        }
+        return ext;
+    }
+}
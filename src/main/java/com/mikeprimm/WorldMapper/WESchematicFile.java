@@ -116,6 +116,47 @@ public class WESchematicFile {
         data[index] = (byte)(dat & 0xF);
         //System.out.println(String.format("new %2x:%2x:%2x", (extids != null)?extids[index >> 1]:0, ids[index], data[index >> 1] ));
     }
+
+    // Blocks in schematic (indexes are YZX order: y * width * length + z * width + x)
+    public int getVolume() {
+        return Math.min(ids.length, data.length);
+    }
+    // Get block ID*16+meta at index
+    public int getIDMeta(int index) {
+        int val = 0xFF & ((int) this.ids[index]);
+        if (extids != null) {
+            val += ((extids[index >> 1] >> ((index & 1) << 2)) & 0xF) << 8;
+        }
+        return (val << 4) | (0xF & data[index]);
+    }
+    /**
+     * Set block ID*16+meta at index.  Safe from several threads at once if AddBlocks exists (see addExtIDs) and no two
+     * threads set the two blocks of one AddBlocks byte (an even index and the one after it).
+     */
+    public void setIDMeta(int index, int idmeta) {
+        int id = idmeta >> 4;
+        if ((id > 255) && (extids == null)) {
+            addExtIDs();
+        }
+        if (extids != null) {
+            int shift = (index & 1) << 2;
+            extids[index >> 1] = (byte) ((extids[index >> 1] & ~(0xF << shift)) | (((id >> 8) & 0xF) << shift));
+        }
+        ids[index] = (byte) (id & 0xFF);
+        data[index] = (byte) (idmeta & 0xF);
+    }
+    // Add AddBlocks, if missing (before setting IDs over 255 from several threads)
+    public void addExtIDs() {
+        if (extids == null) {
+            extids = new byte[(ids.length >> 1) + 1];
+            schematic.put("AddBlocks", new ByteArrayTag("AddBlocks", extids));
+        }
+    }
+    // Delete tile entity of block at index
+    public void deleteTileEntity(int index) {
+        int area = width * length;
+        deleteTileEntity(index % width, index / area, (index % area) / width);
+    }
     public void deleteTileEntity(int x, int y, int z) {
         String key = "" + x + "," + y + "," + z;
         tileEntityToDrop.add(key);
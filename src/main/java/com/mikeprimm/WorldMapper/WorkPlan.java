@@ -0,0 +1,83 @@
+package com.mikeprimm.WorldMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Files to be processed by a run, found by a discovery pass before any work starts.
+ *
+ * Items are handed out largest first, so that with several workers the big files start early and the end of the run
+ * is not left waiting on one large file started last.
+ */
+public class WorkPlan {
+    // One file to process
+    public static class Item {
+        public final File src;
+        public final File dest;
+        public final long size;     // Bytes in source file
+        public final int chunks;    // Chunks present, for region files
+
+        Item(File src, File dest, long size, int chunks) {
+            this.src = src;
+            this.dest = dest;
+            this.size = size;
+            this.chunks = chunks;
+        }
+    }
+
+    private final List<Item> items = new ArrayList<Item>();
+    private long totalBytes;
+    private long totalChunks;
+
+    // Add file to plan (chunk count is read from region file header)
+    public void add(File src, File dest) {
+        int chunks = 0;
+        if (src.getName().endsWith(".mca")) {
+            RegionFile rf = null;
+            try {
+                rf = new RegionFile(src, true);
+                chunks = rf.getChunkCount();
+            } catch (IOException iox) { // Bad file: reported when processed
+            } finally {
+                if (rf != null) rf.cleanup();
+            }
+        }
+        Item it = new Item(src, dest, src.length(), chunks);
+        items.add(it);
+        totalBytes += it.size;
+        totalChunks += it.chunks;
+    }
+
+    // Get items, largest first
+    public List<Item> getItems() {
+        List<Item> sorted = new ArrayList<Item>(items);
+        Collections.sort(sorted, new Comparator<Item>() {
+            public int compare(Item a, Item b) {
+                if (a.size != b.size) return (a.size > b.size) ? -1 : 1;
+                return b.chunks - a.chunks;
+            }
+        });
+        return sorted;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getTotalChunks() {
+        return totalChunks;
+    }
+
+    // Summary line for logging
+    public String summary() {
+        return "Discovered " + items.size() + " files: " + totalChunks + " chunks, " + totalBytes + " bytes";
+    }
+}
@@ -0,0 +1,88 @@
+package com.mikeprimm.WorldMapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed size pool of worker threads for per-file work
+ */
+public class WorkerPool {
+    // Unit of work
+    public interface Task {
+        void run() throws IOException;
+    }
+
+    private final ExecutorService exec;
+    private final List<Future<?>> pending = new ArrayList<Future<?>>();
+    private final int threads;
+
+    public WorkerPool(int threads) {
+        this.threads = Math.max(1, threads);
+        final AtomicInteger cnt = new AtomicInteger();
+        exec = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "worker-" + cnt.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    // Default thread count: one per processor
+    public static int defaultThreads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public synchronized void submit(final Task task) {
+        pending.add(exec.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                task.run();
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Wait for all submitted tasks to complete.  If any failed, the first failure is thrown once all have finished.
+     */
+    public void await() throws IOException {
+        IOException first = null;
+        while (true) {
+            Future<?> f;
+            synchronized (this) {
+                if (pending.isEmpty()) break;
+                f = pending.remove(0);
+            }
+            try {
+                f.get();
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for workers");
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (first == null) {
+                    first = (cause instanceof IOException) ? (IOException) cause : new IOException(String.valueOf(cause), cause);
+                }
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    public void shutdown() {
+        exec.shutdownNow();
+    }
+}
@@ -0,0 +1,256 @@
+package com.mikeprimm.WorldMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.spout.nbt.ByteArrayTag;
+import org.spout.nbt.ByteTag;
+import org.spout.nbt.CompoundMap;
+import org.spout.nbt.CompoundTag;
+import org.spout.nbt.IntArrayTag;
+import org.spout.nbt.IntTag;
+import org.spout.nbt.ListTag;
+import org.spout.nbt.LongTag;
+import org.spout.nbt.ShortTag;
+import org.spout.nbt.StringTag;
+
+/**
+ * Synthetic world generator, for scale and performance testing.
+ *
+ * Writes region files with the chunk layout expected by the mapper (Level, Sections, Biomes, TileEntities).  Output
+ * depends only on the seed and settings, so the same world can be reproduced anywhere.
+ */
+public class WorldGenerator {
+    public long seed = 0;               // Seed for all random content
+    public int regions = 4;             // Number of region files
+    public double fill = 1.0;           // Fraction of chunks present in each region
+    public int sections = 8;            // Sections per chunk (1-16)
+    public double tileentities = 2.0;   // Average tile entities per chunk
+    public int modidmin = 2000;         // Range of mod block IDs to sprinkle
+    public int modidmax = 2100;
+    public double modfraction = 0.1;    // Fraction of solid blocks that are mod blocks
+    public double fragmentation = 0.0;  // Fraction of chunks rewritten at new size after first pass
+
+    private static final int STONE = 1;
+    private static final int GRASS = 2;
+    private static final int DIRT = 3;
+    private static final int BEDROCK = 7;
+    private static final int SAND = 12;
+    private static final int REED = 83;
+    private static final int CHEST = 54;
+    private static final int[] ORES = { 14, 15, 16, 21, 56, 73 };
+
+    private long bytesWritten;
+
+    // Generate world into given directory (creates region subdirectory)
+    public void generate(File worlddir) throws IOException {
+        if ((sections < 1) || (sections > 16)) {
+            throw new IOException("Sections must be 1-16: " + sections);
+        }
+        if ((modidmin < 0) || (modidmax > 4095) || (modidmax < modidmin)) {
+            throw new IOException("Bad mod ID range (IDs are 0-4095): " + modidmin + "-" + modidmax);
+        }
+        File regiondir = new File(worlddir, "region");
+        regiondir.mkdirs();
+        if (!regiondir.isDirectory()) {
+            throw new IOException("Cannot create " + regiondir.getPath());
+        }
+        int side = (int) Math.ceil(Math.sqrt(regions));
+        bytesWritten = 0;
+        for (int i = 0; i < regions; i++) {
+            int rx = (i % side) - (side / 2);
+            int rz = (i / side) - (side / 2);
+            File rf = new File(regiondir, "r." + rx + "." + rz + ".mca");
+            int cnt = generateRegion(rf, rx, rz);
+            Log.info("Generated " + rf.getPath() + ": " + cnt + " chunks, " + rf.length() + " bytes");
+            bytesWritten += rf.length();
+        }
+        Log.info("Generated " + regions + " regions, " + bytesWritten + " bytes total");
+    }
+
+    // Generate one region file
+    private int generateRegion(File f, int rx, int rz) throws IOException {
+        Random rnd = new Random(seed ^ (rx * 341873128712L) ^ (rz * 132897987541L));
+        int timestamp = 1400000000 + rnd.nextInt(10000000);
+        // Pick chunks present, in shuffled order so sector order does not match X/Z order
+        int[] order = new int[1024];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = rnd.nextInt(i + 1);
+            int t = order[i]; order[i] = order[j]; order[j] = t;
+        }
+        RegionFile rf = new RegionFile(f);
+        int cnt = 0;
+        try {
+            rf.create();
+            List<Integer> written = new ArrayList<Integer>();
+            for (int idx : order) {
+                if (rnd.nextDouble() >= fill) continue;
+                int x = idx & 31, z = idx >> 5;
+                rf.writeChunk(x, z, generateChunk(rnd, (rx * 32) + x, (rz * 32) + z, sections));
+                rf.writeChunkTimestamp(x, z, timestamp + rnd.nextInt(100000));
+                written.add(idx);
+                cnt++;
+            }
+            // Rewrite some chunks at a different size, leaving free sector holes behind
+            for (int idx : written) {
+                if (rnd.nextDouble() >= fragmentation) continue;
+                int x = idx & 31, z = idx >> 5;
+                int sect = Math.max(1, Math.min(16, sections + rnd.nextInt(5) - 2));
+                rf.writeChunk(x, z, generateChunk(rnd, (rx * 32) + x, (rz * 32) + z, sect));
+            }
+        } finally {
+            rf.cleanup();
+        }
+        return cnt;
+    }
+
+    // Generate chunk NBT
+    private CompoundTag generateChunk(Random rnd, int cx, int cz, int sectcnt) {
+        CompoundMap lvl = new CompoundMap();
+        lvl.put("xPos", new IntTag("xPos", cx));
+        lvl.put("zPos", new IntTag("zPos", cz));
+        lvl.put("LastUpdate", new LongTag("LastUpdate", 1000000L + rnd.nextInt(1000000)));
+        lvl.put("InhabitedTime", new LongTag("InhabitedTime", rnd.nextInt(100000)));
+        lvl.put("TerrainPopulated", new ByteTag("TerrainPopulated", (byte) 1));
+        lvl.put("LightPopulated", new ByteTag("LightPopulated", (byte) 1));
+        // Biomes - a couple of patches per chunk
+        byte[] biomes = new byte[256];
+        int b0 = rnd.nextInt(WorldMapper.biomes.length);
+        int b1 = rnd.nextInt(WorldMapper.biomes.length);
+        int split = rnd.nextInt(16);
+        for (int i = 0; i < 256; i++) {
+            biomes[i] = (byte) (((i & 0xF) < split) ? b0 : b1);
+        }
+        lvl.put("Biomes", new ByteArrayTag("Biomes", biomes));
+        // Surface height per column (top section partly filled)
+        int top = (sectcnt * 16) - 1;
+        int[] height = new int[256];
+        int base = top - 4 - rnd.nextInt(4);
+        for (int i = 0; i < 256; i++) {
+            height[i] = Math.max(1, base + rnd.nextInt(3));
+        }
+        List<CompoundTag> sectlist = new ArrayList<CompoundTag>();
+        for (int sy = 0; sy < sectcnt; sy++) {
+            sectlist.add(generateSection(rnd, sy, height));
+        }
+        List<CompoundTag> tes = new ArrayList<CompoundTag>();
+        int tecnt = (int) Math.round(tileentities * 2 * rnd.nextDouble());
+        for (int i = 0; i < tecnt; i++) {
+            int x = rnd.nextInt(16), z = rnd.nextInt(16);
+            int y = 1 + rnd.nextInt(Math.max(1, height[(z << 4) | x] - 1));
+            CompoundMap sect = sectlist.get(y >> 4).getValue();
+            boolean mod = (modidmax > 255) && rnd.nextBoolean();
+            int id = mod ? (modidmin + rnd.nextInt(modidmax - modidmin + 1)) : CHEST;
+            setBlock(sect, ((y & 0xF) << 8) | (z << 4) | x, id, 0);
+            tes.add(generateTileEntity(rnd, mod ? "Mod" + id : "Chest", (cx * 16) + x, y, (cz * 16) + z));
+        }
+        // Height map: first air above the surface
+        int[] hmap = new int[256];
+        for (int i = 0; i < 256; i++) {
+            hmap[i] = height[i] + 1;
+        }
+        lvl.put("HeightMap", new IntArrayTag("HeightMap", hmap));
+        lvl.put("Sections", new ListTag<CompoundTag>("Sections", CompoundTag.class, sectlist));
+        lvl.put("Entities", new ListTag<CompoundTag>("Entities", CompoundTag.class, new ArrayList<CompoundTag>()));
+        lvl.put("TileEntities", new ListTag<CompoundTag>("TileEntities", CompoundTag.class, tes));
+        CompoundMap root = new CompoundMap();
+        root.put("Level", new CompoundTag("Level", lvl));
+        return new CompoundTag("", root);
+    }
+
+    // Generate section, filled below given column heights
+    private CompoundTag generateSection(Random rnd, int sy, int[] height) {
+        CompoundMap sect = new CompoundMap();
+        byte[] blocks = new byte[4096];
+        byte[] data = new byte[2048];
+        byte[] skylight = new byte[2048];
+        byte[] blocklight = new byte[2048];
+        sect.put("Y", new ByteTag("Y", (byte) sy));
+        sect.put("Blocks", new ByteArrayTag("Blocks", blocks));
+        sect.put("Data", new ByteArrayTag("Data", data));
+        sect.put("SkyLight", new ByteArrayTag("SkyLight", skylight));
+        sect.put("BlockLight", new ByteArrayTag("BlockLight", blocklight));
+        for (int i = 0; i < 4096; i++) { // YZX order
+            int y = (sy * 16) + (i >> 8);
+            int h = height[i & 0xFF];
+            int id = 0, meta = 0;
+            if (y == 0) {
+                id = BEDROCK;
+            }
+            else if (y < (h - 3)) {
+                double r = rnd.nextDouble();
+                if (r < modfraction) {
+                    id = modidmin + rnd.nextInt(modidmax - modidmin + 1);
+                    meta = rnd.nextInt(16);
+                }
+                else if (r < (modfraction + 0.02)) {
+                    id = ORES[rnd.nextInt(ORES.length)];
+                }
+                else {
+                    id = STONE;
+                }
+            }
+            else if (y < h) {
+                id = DIRT;
+            }
+            else if (y == h) {
+                id = (rnd.nextInt(8) == 0) ? SAND : GRASS;
+            }
+            else if ((y == (h + 1)) && (rnd.nextInt(64) == 0)) {
+                id = REED;  // Some float over air, for support checks
+            }
+            if (id != 0) {
+                setBlock(sect, i, id, meta);
+            }
+            else {  // Open sky
+                skylight[i >> 1] |= (byte) (((i & 1) == 0) ? 0x0F : 0xF0);
+            }
+        }
+        return new CompoundTag("Section", sect);
+    }
+
+    // Set block ID and meta in section
+    private static void setBlock(CompoundMap sect, int i, int id, int meta) {
+        byte[] blocks = ((ByteArrayTag) sect.get("Blocks")).getValue();
+        byte[] data = ((ByteArrayTag) sect.get("Data")).getValue();
+        blocks[i] = (byte) (id & 0xFF);
+        int shift = ((i & 1) == 0) ? 0 : 4;
+        data[i >> 1] = (byte) ((data[i >> 1] & (0xF0 >> shift)) | ((meta & 0xF) << shift));
+        if (id > 255) {
+            ByteArrayTag add = (ByteArrayTag) sect.get("Add");
+            if (add == null) {
+                add = new ByteArrayTag("Add", new byte[2048]);
+                sect.put("Add", add);
+            }
+            byte[] ext = add.getValue();
+            ext[i >> 1] = (byte) ((ext[i >> 1] & (0xF0 >> shift)) | (((id >> 8) & 0xF) << shift));
+        }
+    }
+
+    // Generate tile entity with a few inventory items
+    private static CompoundTag generateTileEntity(Random rnd, String id, int x, int y, int z) {
+        CompoundMap te = new CompoundMap();
+        te.put("id", new StringTag("id", id));
+        te.put("x", new IntTag("x", x));
+        te.put("y", new IntTag("y", y));
+        te.put("z", new IntTag("z", z));
+        List<CompoundTag> items = new ArrayList<CompoundTag>();
+        int icnt = rnd.nextInt(8);
+        for (int i = 0; i < icnt; i++) {
+            CompoundMap item = new CompoundMap();
+            item.put("id", new ShortTag("id", (short) (1 + rnd.nextInt(400))));
+            item.put("Damage", new ShortTag("Damage", (short) rnd.nextInt(16)));
+            item.put("Count", new ByteTag("Count", (byte) (1 + rnd.nextInt(64))));
+            item.put("Slot", new ByteTag("Slot", (byte) i));
+            items.add(new CompoundTag("", item));
+        }
+        te.put("Items", new ListTag<CompoundTag>("Items", CompoundTag.class, items));
+        return new CompoundTag("", te);
+    }
+}
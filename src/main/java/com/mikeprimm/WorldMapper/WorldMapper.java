@@ -5,24 +5,38 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.io.Writer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.spout.nbt.ByteArrayTag;
+import org.spout.nbt.ByteTag;
 import org.spout.nbt.CompoundMap;
 import org.spout.nbt.CompoundTag;
+import org.spout.nbt.IntArrayTag;
 import org.spout.nbt.ListTag;
+import org.spout.nbt.ShortTag;
 import org.spout.nbt.Tag;
 import org.spout.nbt.util.NBTMapper;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonIOException;
 import com.google.gson.JsonSyntaxException;
 
@@ -40,8 +54,13 @@ public class WorldMapper {
     private static BitSet blkid_biome_specific = new BitSet(); // Flags which source IDs to scrap tile entity
     private static BitSet blkid_toss_tileentity = new BitSet(); // Flags which source IDs to scrap tile entity
     private static BitSet blkid_toss_ifunsupported = new BitSet(); // Flags which source IDs to scrap if over air
+    private static BitSet blkid_toss_ifunattached = new BitSet(); // Flags which source IDs to scrap if no neighbor left
+    private static BitSet blkid_transparent = new BitSet(); // Flags which target IDs let sky light through (like air)
     // For target above 65536
     private static ArrayList<int[]> blkid_random_map = new ArrayList<int[]>();
+    // Item mappings: key is item ID << 16 | damage (or ~ID, for any damage), value is index in item_mappings
+    private static IntMap item_map = new IntMap();
+    private static ArrayList<ItemMapping> item_mappings = new ArrayList<ItemMapping>();
 
     private static class BlockMapping {
         private int blkid;
@@ -51,22 +70,55 @@ public class WorldMapper {
         private int[] newRandomIDMeta = null;
         private boolean tosstileentity = false;
         private boolean tossifunsupported = false;
+        private boolean tossifunattached = false;
+        private boolean transparent = false;    // New block lets sky light through (for --fix-lighting)
         private String biomes[] = null;
+        private int toblkid = -1;   // If set, maps IDs blkid to toblkid, onto newblkid and up
+
+        // Copy for ID offset by given amount, in an ID range
+        BlockMapping shift(int d) {
+            BlockMapping m = new BlockMapping();
+            m.blkid = blkid + d;
+            m.meta = meta;
+            m.newblkid = (newRandomIDMeta != null) ? newblkid : (newblkid + d);
+            m.newmeta = newmeta;
+            m.newRandomIDMeta = newRandomIDMeta;
+            m.tosstileentity = tosstileentity;
+            m.tossifunsupported = tossifunsupported;
+            m.tossifunattached = tossifunattached;
+            m.transparent = transparent;
+            m.biomes = biomes;
+            return m;
+        }
+    }
+    private static class ItemMapping {
+        private int id;
+        private int damage = -1;    // -1 for any
+        private int newid;
+        private int newdamage = -1; // -1 to keep damage
     }
     private static class MappingConfig {
         private BlockMapping[] blocks;
+        private ItemMapping[] items;    // Item stacks in tile entity and entity data (numeric IDs)
     }
     
     private static class MappedChunk {
         Tag<?> level;
         int bcnt;   // Number of blocks mapped
         int tescrubbed; // Number of tile entities scrubbed
+        int unsupported; // Number of unsupported blocks removed
+        int icnt;   // Number of item stacks mapped
+        int[] idcounts; // If set, count of changed blocks by source ID*16 + meta
         CompoundMap value;  // Base value for chunk
         List<CompoundTag> tileents; // List of tile entites (original)
         LinkedList<CompoundTag> new_tileents; // New list, if modified
         byte[] biomes; // biome data (ZX order)
         List<CompoundTag> sections; // Chunk sections
         boolean empty;
+        int cx, cz;     // Chunk coordinates
+        Neighborhood neighbors; // If set, source blocks around chunk (for neighbor rules)
+        long[] changedcols;     // If set (--fix-lighting), columns with changed blocks (ZX order)
+        int[] opaquetop;        // If set (--fix-lighting), by column: top of highest block changed to one blocking sky light
 
         @SuppressWarnings("unchecked")
         MappedChunk(Tag<?> lvl) throws IOException {
@@ -89,16 +141,75 @@ public class WorldMapper {
         }
         // Process chunk
         void processChunk() throws IOException {
+            if (neighbors != null) {    // Neighbor rules see chunk as it was before mapping
+                Integer xpos = NBTMapper.getTagValue(value.get("xPos"), Integer.class);
+                Integer zpos = NBTMapper.getTagValue(value.get("zPos"), Integer.class);
+                if ((xpos == null) || (zpos == null)) { throw new IOException("No value for xPos or zPos in chunk"); }
+                cx = xpos;
+                cz = zpos;
+                neighbors.put(cx, cz, sections);
+            }
             empty = true;
+            changedcols = fixlighting ? new long[4] : null;
+            opaquetop = fixlighting ? new int[256] : null;
             // Loop through the sections
             for (CompoundTag sect : sections) {
                 empty = processSection(sect.getValue()) & empty;
             }
+            Metrics.add(Metrics.Counter.SECTIONS, sections.size());
+            if ((changedcols != null) && !empty && (bcnt > 0)) {
+                fixLighting();
+            }
             // If modified tile entities list, replace it
             if (new_tileents != null) {
                 value.put("TileEntities", new ListTag<CompoundTag>("TileEntities", CompoundTag.class, new_tileents));
                 new_tileents = null;
             }
+            if (item_map.size() > 0) {  // Items in inventories, item frames, dropped items, ...
+                remapItems(value.get("TileEntities"));
+                remapItems(value.get("Entities"));
+                Metrics.add(Metrics.Counter.ITEMS_MAPPED, icnt);
+            }
+        }
+        // Test if chunk needs to be written (blocks or items mapped)
+        boolean isChanged() {
+            return (bcnt > 0) || (icnt > 0);
+        }
+        // Map item stacks anywhere under given tag (item stacks can nest, in containers held as items)
+        private void remapItems(Tag<?> tag) {
+            if (tag instanceof CompoundTag) {
+                CompoundMap m = ((CompoundTag) tag).getValue();
+                Tag<?> id = m.get("id");
+                if ((id instanceof ShortTag) && m.containsKey("Count")) {  // Item stack
+                    remapItem(m, ((ShortTag) id).getValue());
+                }
+                for (Tag<?> t : m.values()) {
+                    remapItems(t);
+                }
+            }
+            else if (tag instanceof ListTag) {
+                for (Object t : ((ListTag<?>) tag).getValue()) {
+                    remapItems((Tag<?>) t);
+                }
+            }
+        }
+        private void remapItem(CompoundMap item, int id) {
+            if (id < 0) return;
+            Short dmg = NBTMapper.getTagValue(item.get("Damage"), Short.class);
+            int damage = (dmg != null) ? dmg.intValue() : 0;
+            int i = item_map.get((id << 16) | (damage & 0xFFFF), -1);
+            if (i < 0) {
+                i = item_map.get(~id, -1);
+                if (i < 0) return;
+            }
+            ItemMapping im = item_mappings.get(i);
+            int newdamage = (im.newdamage < 0) ? damage : im.newdamage;
+            if ((im.newid == id) && (newdamage == damage)) return;
+            item.put("id", new ShortTag("id", (short) im.newid));
+            if (newdamage != damage) {
+                item.put("Damage", new ShortTag("Damage", (short) newdamage));
+            }
+            icnt++;
         }
         CompoundMap findSection(int y) {
             for (CompoundTag sect : sections) {
@@ -110,31 +221,43 @@ public class WorldMapper {
             }
             return null;
         }
-        boolean isAirBelow(byte[] blocks, byte[] extblocks, int off, Byte y) {
-            int yy = ((off >> 8) & 0xF);
-            int id = 0;
-            if (yy > 0) {   // Same section?
-                off -= 256;
-                int extid = 0;
-                id = (255 & blocks[off]);
-                if (extblocks != null) {
-                    if ((off & 1) == 0) { // Even values
-                        id |= ((extid & 0xF) << 8);
-                    }
-                    else {
-                        id |= ((extid & 0xF0) << 4);
-                    }
-                }
+        // Test if block below given index (YZX order) is air, for section decoded to ID*16+meta values
+        boolean isAirBelow(short[] cells, int off, Byte y) throws IOException {
+            if (((off >> 8) & 0xF) > 0) {   // Same section?
+                return (cells[off - 256] & 0xFFF0) == 0;
             }
-            else {
-                y = (byte)(y.intValue() - 1);
-                CompoundMap sect = findSection(y);
-                if (sect != null) {
-                    return isAirBelow(NBTMapper.getTagValue(sect.get("Blocks"), byte[].class), 
-                            NBTMapper.getTagValue(sect.get("Add"), byte[].class), off + 4096, y);
-                }
+            return isAirBelowSection(off, y);
+        }
+        // Test if block at index (YZX order) of section at given base Y has no neighbor left after mapping
+        boolean isUnattached(int off, int yoff) throws IOException {
+            if (neighbors == null) return false;
+            int x = (cx << 4) + (off & 0xF), y = yoff + ((off >> 8) & 0xF), z = (cz << 4) + ((off >> 4) & 0xF);
+            return mapsToAir(neighbors.getIDMeta(x, y - 1, z)) && mapsToAir(neighbors.getIDMeta(x, y + 1, z)) &&
+                mapsToAir(neighbors.getIDMeta(x - 1, y, z)) && mapsToAir(neighbors.getIDMeta(x + 1, y, z)) &&
+                mapsToAir(neighbors.getIDMeta(x, y, z - 1)) && mapsToAir(neighbors.getIDMeta(x, y, z + 1));
+        }
+        // Test if block in top layer of section below is air, for index in bottom layer of section y
+        private boolean isAirBelowSection(int off, Byte y) throws IOException {
+            CompoundMap sect = findSection(y.intValue() - 1);
+            if (sect != null) {
+                return (getIDMeta(sect, off + 3840) >> 4) == 0;
+            }
+            return true;
+        }
+        // Get block ID*16+meta at given index (YZX order) of section
+        private int getIDMeta(CompoundMap sect, int off) throws IOException {
+            byte[] blocks = NBTMapper.getTagValue(sect.get("Blocks"), byte[].class);
+            byte[] ext = NBTMapper.getTagValue(sect.get("Add"), byte[].class);
+            byte[] data = NBTMapper.getTagValue(sect.get("Data"), byte[].class);
+            if ((blocks == null) || (blocks.length < 4096) || (data == null) || (data.length < 2048)) {
+                throw new IOException("Section missing Blocks or Data field");
+            }
+            int shift = (off & 1) << 2;
+            int id = (255 & blocks[off]);
+            if ((ext != null) && (ext.length >= 2048)) {
+                id |= ((ext[off >> 1] >> shift) & 0xF) << 8;
             }
-            return (id == 0);
+            return (id << 4) | ((data[off >> 1] >> shift) & 0xF);
         }
         boolean processSection(CompoundMap sect) throws IOException {
             Byte y = NBTMapper.getTagValue(sect.get("Y"), Byte.class);
@@ -146,94 +269,130 @@ public class WorldMapper {
             if ((extblocks != null) && (extblocks.length < 2048))  throw new IOException("Section missing Data field");
             byte[] data = NBTMapper.getTagValue(sect.get("Data"), byte[].class);
             if ((data == null) || (data.length < 2048)) throw new IOException("Section missing Data field");
-            
+
+            short[] cells = SectionCodec.getScratch();
+            SectionCodec.unpack(blocks, extblocks, data, cells);
+            long[] dirty = null;
             boolean isEmpty = true;
-            for (int i = 0, j = 0; i < 4096; j++) { // YZX order
-                int id, meta;
-                int extid = 0;
-                int datavals = data[j];
-                int idmataval = 0;
-                int newidmetaval;
-                if (extblocks != null) {
-                    extid = 255 & extblocks[j];
-                }
-                // Process even values
-                id = (255 & blocks[i]) | ((extid & 0xF) << 8);
-                if (id != 0) {
-                    meta = (datavals & 0xF);
-                    idmataval = (id << 4) | meta;
-                    newidmetaval = blkid_map[idmataval];
-                    int biomeid = 0xFF & biomes[i & 0xFF];
-                    newidmetaval = getBiomeSpecificID(idmataval, biomeid);
-                    // Unsupported reed?
-                    if (blkid_toss_ifunsupported.get(idmataval) && isAirBelow(blocks, extblocks, i, y)) {
-                        newidmetaval = 0;
-                        System.out.println(String.format("Unsupported block: %d,%d,%d", (i & 0xF), ((i >> 8) & 0xF) + yoff, (i >> 4) & 0xF));
+            for (int i = 0; i < 4096; i++) { // YZX order
+                int idmetaval = cells[i] & 0xFFFF;
+                if (idmetaval < 16) continue;   // Air
+                int newidmetaval = blkid_map[idmetaval];
+                if ((newidmetaval >= RANDOM_INDEX) || blkid_biome_specific.get(idmetaval)) {
+                    newidmetaval = getBiomeSpecificID(idmetaval, 0xFF & biomes[i & 0xFF]);
+                }
+                // Unsupported reed?
+                if (blkid_toss_ifunsupported.get(idmetaval) && isAirBelow(cells, i, y)) {
+                    newidmetaval = 0;
+                    unsupported++;
+                    Log.event(Log.Level.DEBUG, "unsupported-block", "Unsupported block: %d,%d,%d", (i & 0xF), ((i >> 8) & 0xF) + yoff, (i >> 4) & 0xF);
+                }
+                // Nothing left to attach to?
+                else if (blkid_toss_ifunattached.get(idmetaval) && isUnattached(i, yoff)) {
+                    newidmetaval = 0;
+                    unsupported++;
+                    Log.event(Log.Level.DEBUG, "unattached-block", "Unattached block: %d,%d,%d", (i & 0xF), ((i >> 8) & 0xF) + yoff, (i >> 4) & 0xF);
+                }
+                if (newidmetaval != idmetaval) {    // New value?
+                    if (idcounts != null) {
+                        idcounts[idmetaval]++;
                     }
-                    
-                    if (newidmetaval != idmataval) {    // New value?
-                        if (blkid_toss_tileentity.get(idmataval)) { // If scrubbing tile entity
-                            deleteTileEntity(i & 0xF, ((i >> 8) & 0xF) + yoff, (i >> 4) & 0xF, idmataval);
-                        }
-                        id = (newidmetaval >> 4);
-                        meta = (newidmetaval & 0xF);
-                        if ((id > 256) && (extblocks == null)) {
-                            extblocks = new byte[2048];
-                            sect.put("Add", new ByteArrayTag("Add", extblocks));
-                        }
-                        blocks[i] = (byte)(255 & id);
-                        if (extblocks != null) {
-                            extid = (byte) ((extid & 0xF0) | ((id >> 8) & 0xF));
+                    if (blkid_toss_tileentity.get(idmetaval)) { // If scrubbing tile entity
+                        deleteTileEntity(i & 0xF, ((i >> 8) & 0xF) + yoff, (i >> 4) & 0xF, idmetaval);
+                    }
+                    cells[i] = (short) newidmetaval;
+                    if (changedcols != null) {
+                        changedcols[(i & 0xFF) >> 6] |= 1L << (i & 63);
+                        if (!isClear(newidmetaval)) {
+                            opaquetop[i & 0xFF] = Math.max(opaquetop[i & 0xFF], yoff + ((i >> 8) & 0xF) + 1);
                         }
-                        datavals = (byte) ((datavals & 0xF0) | (meta & 0xF));
-                        bcnt++;
                     }
-                    if (newidmetaval != 0) {
-                        isEmpty = false;
+                    if (dirty == null) {
+                        dirty = new long[SectionCodec.WORDS / 64];
                     }
+                    SectionCodec.markDirty(dirty, i);
+                    bcnt++;
                 }
-                i++;
-                // Process odd values
-                id = (255 & blocks[i]) | ((extid & 0xF0) << 4);
-                if (id != 0) {
-                    meta = (datavals & 0xF0) >> 4;
-                    idmataval = (id << 4) | meta;
-                    newidmetaval = blkid_map[idmataval];
-                    int biomeid = 0xFF & biomes[i & 0xFF];
-                    newidmetaval = getBiomeSpecificID(idmataval, biomeid);
-                    // Unsupported reed?
-                    if (blkid_toss_ifunsupported.get(idmataval) && isAirBelow(blocks, extblocks, i, y)) {
-                        newidmetaval = 0;
-                        System.out.println(String.format("Unsupported block: %d,%d,%d", (i & 0xF), ((i >> 8) & 0xF) + yoff, (i >> 4) & 0xF));
+                if (newidmetaval != 0) {
+                    isEmpty = false;
+                }
+            }
+            if (dirty != null) {    // Repack changed words
+                byte[] newext = SectionCodec.pack(cells, dirty, blocks, extblocks, data);
+                if (newext != extblocks) {
+                    sect.put("Add", new ByteArrayTag("Add", newext));
+                }
+            }
+            return isEmpty;
+        }
+        /**
+         * Bring HeightMap and sky light up to date in columns with changed blocks.  A mapping can clear blocks, or put
+         * blocks that stop sky light where it passed.  Blocks above the stored height let sky light through unless they
+         * were changed, so if a changed block above it now stops the light, the height rises to the top of the highest
+         * such block, and the blocks it now covers lose their sky light.  Otherwise the height falls to above the
+         * highest block left below it that is neither air nor transparent, and the blocks it falls past get full sky
+         * light.  Sky light spreading sideways, and block light of changed light sources, are left to the server: the
+         * chunk is marked for relighting (LightPopulated=0), which only redoes the chunks that changed.
+         */
+        private void fixLighting() throws IOException {
+            int[] hmap = NBTMapper.getTagValue(value.get("HeightMap"), int[].class);
+            int relit = 0;
+            if ((hmap != null) && (hmap.length >= 256)) {
+                CompoundMap[] sects = new CompoundMap[16];  // Sections by Y
+                for (CompoundTag sect : sections) {
+                    Byte y = NBTMapper.getTagValue(sect.getValue().get("Y"), Byte.class);
+                    if ((y != null) && (y >= 0) && (y <= 15)) {
+                        sects[y] = sect.getValue();
                     }
-                    if (newidmetaval != idmataval) {    // New value?
-                        if (blkid_toss_tileentity.get(idmataval)) { // If scrubbing tile entity
-                            deleteTileEntity(i & 0xF, ((i >> 8) & 0xF) + yoff, (i >> 4) & 0xF, idmataval);
+                }
+                for (int g = 0; g < changedcols.length; g++) {
+                    long bits = changedcols[g];
+                    while (bits != 0) {
+                        int col = (g << 6) + Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+                        int h = Math.max(0, Math.min(hmap[col], 256));
+                        int nh = h;
+                        if (opaquetop[col] > h) {   // Raised
+                            nh = opaquetop[col];
+                            for (int y = h; y < nh; y++) {
+                                setSkyLight(sects, col, y, 0);
+                            }
                         }
-                        id = (newidmetaval >> 4);
-                        meta = (newidmetaval & 0xF);
-                        if ((id > 256) && (extblocks == null)) {
-                            extblocks = new byte[2048];
-                            sect.put("Add", new ByteArrayTag("Add", extblocks));
+                        else {
+                            while ((nh > 0) && isClear(sects, col, nh - 1)) {
+                                nh--;
+                                setSkyLight(sects, col, nh, 15);
+                            }
                         }
-                        blocks[i] = (byte)(255 & id);
-                        if (extblocks != null) {
-                            extid = (byte) ((extid & 0x0F) | ((id >> 4) & 0xF0));
+                        if (nh != hmap[col]) {
+                            hmap[col] = nh;
+                            relit++;
                         }
-                        datavals = (byte) ((datavals & 0x0F) | ((meta << 4) & 0xF0));
-                        bcnt++;
-                    }
-                    if (newidmetaval != 0) {
-                        isEmpty = false;
                     }
                 }
-                i++;
-                data[j] = (byte)(0xFF & datavals);
-                if (extblocks != null) {
-                    extblocks[j] = (byte)(0xFF & extid);
-                }
+                value.put("HeightMap", new IntArrayTag("HeightMap", hmap));
             }
-            return isEmpty;
+            value.put("LightPopulated", new ByteTag("LightPopulated", (byte) 0));
+            Metrics.add(Metrics.Counter.COLUMNS_RELIT, relit);
+        }
+        // Test if block at given column (ZX order) and Y lets sky light through, after mapping
+        private boolean isClear(CompoundMap[] sects, int col, int y) throws IOException {
+            CompoundMap sect = sects[y >> 4];
+            if (sect == null) return true;  // Missing section is all air
+            return isClear(getIDMeta(sect, ((y & 0xF) << 8) | col));
+        }
+        // Test if ID*16+meta value lets sky light through (air, or mapped to block marked transparent)
+        private boolean isClear(int idmeta) {
+            return ((idmeta >> 4) == 0) || blkid_transparent.get(idmeta);
+        }
+        private void setSkyLight(CompoundMap[] sects, int col, int y, int level) {
+            CompoundMap sect = sects[y >> 4];
+            if (sect == null) return;
+            byte[] sky = NBTMapper.getTagValue(sect.get("SkyLight"), byte[].class);
+            if ((sky == null) || (sky.length < 2048)) return;
+            int off = ((y & 0xF) << 8) | col;
+            int shift = (off & 1) << 2;
+            sky[off >> 1] = (byte) ((sky[off >> 1] & ~(0xF << shift)) | (level << shift));
         }
         private void deleteTileEntity(int x, int y, int z, int idmeta) {
             if (new_tileents == null) {
@@ -265,7 +424,14 @@ public class WorldMapper {
         for (int i = 0; i < biome_blkid_map.length; i++) {
             biome_blkid_map[i] = null;
         }
+        blkid_biome_specific.clear();
         blkid_toss_tileentity.clear();
+        blkid_toss_ifunsupported.clear();
+        blkid_toss_ifunattached.clear();
+        blkid_transparent.clear();
+        blkid_random_map.clear();
+        item_map.clear();
+        item_mappings.clear();
     }
     private static void processMapDefinition(MappingConfig cfg) throws IOException {
         if (cfg.blocks == null) {
@@ -276,46 +442,157 @@ public class WorldMapper {
         // Traverse block mapping objects
         for (BlockMapping mb : cfg.blocks) {
             if (mb == null) continue;
+            checkBlockMapping(mb);
+            int last = (mb.toblkid >= 0) ? mb.toblkid : mb.blkid;
+            for (int id = mb.blkid; id <= last; id++) {     // ID range: source and new IDs step together
+                addBlockMapping((id == mb.blkid) ? mb : mb.shift(id - mb.blkid));
+            }
+        }
+        if (cfg.items != null) {
+            for (ItemMapping im : cfg.items) {
+                if (im == null) continue;
+                if ((im.id < 0) || (im.id > 32767) || (im.newid < 0) || (im.newid > 32767) || (im.damage > 32767) || (im.newdamage > 32767)) {
+                    throw new IOException("Invalid item mapping: " + im.id + ":" + im.damage + " to " + im.newid + ":" + im.newdamage);
+                }
+                item_map.put((im.damage < 0) ? ~im.id : ((im.id << 16) | im.damage), item_mappings.size());
+                item_mappings.add(im);
+            }
+        }
+        logMapping("Mapping loaded");
+    }
 
-            if (mb.biomes != null) {    // Biome specific?
-                // Mark blockID+meta as having biome specific mapping
-                if (mb.meta < 0) {
-                    for (int meta = 0; meta < 16; meta++) {
-                        blkid_biome_specific.set((mb.blkid*16) + meta);
-                    }
+    // Log count of mapped values (and each mapping, if debugging)
+    private static void logMapping(String what) {
+        int mcnt = 0;
+        for (int i = 0; i < blkid_map.length; i++) {
+            if (blkid_map[i] != i) {
+                mcnt++;
+                if (Log.isEnabled(Log.Level.DEBUG)) {
+                    Log.debug("Map " + (i>>4) + ":" + (i & 0xF) + " to " + (blkid_map[i] >> 4) + ":" + (blkid_map[i] & 0xF) + 
+                        (blkid_toss_tileentity.get(i)?", discard tile entity":""));
                 }
-                else {
-                    blkid_biome_specific.set((mb.blkid*16) + mb.meta);
+            }
+        }
+        Log.info(what + ": " + mcnt + " block ID:meta values mapped" +
+            ((item_mappings.size() > 0) ? (", " + item_mappings.size() + " item mappings") : ""));
+    }
+    
+    // Copy of loaded mapping tables, in compiled form
+    private static CompiledMapping currentMapping() {
+        CompiledMapping cm = new CompiledMapping();
+        cm.blocks = blkid_map.clone();
+        for (int i = 0; i < biome_blkid_map.length; i++) {
+            cm.biomes[i] = (biome_blkid_map[i] != null) ? biome_blkid_map[i].clone() : null;
+        }
+        cm.biomeSpecific = (BitSet) blkid_biome_specific.clone();
+        cm.tossTileEntity = (BitSet) blkid_toss_tileentity.clone();
+        cm.tossIfUnsupported = (BitSet) blkid_toss_ifunsupported.clone();
+        cm.tossIfUnattached = (BitSet) blkid_toss_ifunattached.clone();
+        cm.transparent = (BitSet) blkid_transparent.clone();
+        cm.random.addAll(blkid_random_map);
+        cm.items = new int[4 * item_mappings.size()];
+        for (int i = 0; i < item_mappings.size(); i++) {
+            ItemMapping im = item_mappings.get(i);
+            cm.items[4 * i] = im.id;
+            cm.items[(4 * i) + 1] = im.damage;
+            cm.items[(4 * i) + 2] = im.newid;
+            cm.items[(4 * i) + 3] = im.newdamage;
+        }
+        return cm;
+    }
+
+    // Load mapping tables from compiled form
+    private static void applyMapping(CompiledMapping cm) throws IOException {
+        if (cm.blocks.length != blkid_map.length) throw new IOException("Compiled mapping has wrong table size");
+        defaultMap();
+        System.arraycopy(cm.blocks, 0, blkid_map, 0, blkid_map.length);
+        for (int i = 0; i < biome_blkid_map.length; i++) {
+            if (cm.biomes[i] == null) continue;
+            if (cm.biomes[i].length != blkid_map.length) throw new IOException("Compiled mapping has wrong table size");
+            biome_blkid_map[i] = cm.biomes[i].clone();
+        }
+        blkid_biome_specific.or(cm.biomeSpecific);
+        blkid_toss_tileentity.or(cm.tossTileEntity);
+        blkid_toss_ifunsupported.or(cm.tossIfUnsupported);
+        blkid_toss_ifunattached.or(cm.tossIfUnattached);
+        blkid_transparent.or(cm.transparent);
+        blkid_random_map.addAll(cm.random);
+        for (int i = 0; (i + 3) < cm.items.length; i += 4) {
+            ItemMapping im = new ItemMapping();
+            im.id = cm.items[i];
+            im.damage = cm.items[i + 1];
+            im.newid = cm.items[i + 2];
+            im.newdamage = cm.items[i + 3];
+            item_map.put((im.damage < 0) ? ~im.id : ((im.id << 16) | im.damage), item_mappings.size());
+            item_mappings.add(im);
+        }
+    }
+
+    // Check block mapping values (and ID range) are in range
+    private static void checkBlockMapping(BlockMapping mb) throws IOException {
+        int span = (mb.toblkid >= 0) ? (mb.toblkid - mb.blkid) : 0;
+        if ((mb.blkid < 0) || (mb.blkid > 4095) || (mb.meta < -1) || (mb.meta > 15) || (span < 0) || ((mb.blkid + span) > 4095)) {
+            throw new IOException("Invalid source block: " + mb.blkid + ((span > 0) ? ("-" + mb.toblkid) : "") + ":" + mb.meta);
+        }
+        if (mb.newRandomIDMeta != null) {
+            if ((mb.newRandomIDMeta.length == 0) || ((mb.newRandomIDMeta.length & 1) != 0)) {
+                throw new IOException("Invalid newRandomIDMeta for block " + mb.blkid + ": needs ID, meta pairs");
+            }
+            for (int i = 0; i < mb.newRandomIDMeta.length; i += 2) {
+                if ((mb.newRandomIDMeta[i] < 0) || (mb.newRandomIDMeta[i] > 4095) || (mb.newRandomIDMeta[i + 1] < 0) || (mb.newRandomIDMeta[i + 1] > 15)) {
+                    throw new IOException("Invalid newRandomIDMeta for block " + mb.blkid + ": " + mb.newRandomIDMeta[i] + ":" + mb.newRandomIDMeta[i + 1]);
                 }
-                for (int bidx = 0; bidx < mb.biomes.length; bidx++) {
-                    int biomeid = findBiomeIndex(mb.biomes[bidx]);
-                    if (biomeid < 0) {
-                        throw new IOException("Invalid biome name: " + mb.biomes[bidx]);
-                    }
-                    if (biome_blkid_map[biomeid] == null) {
-                        biome_blkid_map[biomeid] = new int[blkid_map.length];
-                        for (int i = 0; i < blkid_map.length; i++) {
-                            biome_blkid_map[biomeid][i] = i;
-                        }
-                    }
-                    updateMapping(mb, biome_blkid_map[biomeid]);
+            }
+        }
+        else if ((mb.newblkid < 0) || ((mb.newblkid + span) > 4095) || (mb.newmeta < -1) || (mb.newmeta > 15)) {
+            throw new IOException("Invalid new block for block " + mb.blkid + ": " + mb.newblkid + ":" + mb.newmeta);
+        }
+    }
+
+    // Add block mapping to tables
+    private static void addBlockMapping(BlockMapping mb) throws IOException {
+        if (mb.biomes != null) {    // Biome specific?
+            // Mark blockID+meta as having biome specific mapping
+            if (mb.meta < 0) {
+                for (int meta = 0; meta < 16; meta++) {
+                    blkid_biome_specific.set((mb.blkid*16) + meta);
                 }
             }
             else {
-                updateMapping(mb, blkid_map);
+                blkid_biome_specific.set((mb.blkid*16) + mb.meta);
+            }
+            for (int bidx = 0; bidx < mb.biomes.length; bidx++) {
+                int biomeid = findBiomeIndex(mb.biomes[bidx]);
+                if (biomeid < 0) {
+                    throw new IOException("Invalid biome name: " + mb.biomes[bidx]);
+                }
+                if (biome_blkid_map[biomeid] == null) {
+                    biome_blkid_map[biomeid] = new int[blkid_map.length];
+                    for (int i = 0; i < blkid_map.length; i++) {
+                        biome_blkid_map[biomeid][i] = i;
+                    }
+                }
+                updateMapping(mb, biome_blkid_map[biomeid]);
             }
         }
-        // Print parsed mapping
-        for (int i = 0; i < blkid_map.length; i++) {
-            if (blkid_map[i] != i) {
-                System.out.println("Map " + (i>>4) + ":" + (i & 0xF) + " to " + (blkid_map[i] >> 4) + ":" + (blkid_map[i] & 0xF) + 
-                        (blkid_toss_tileentity.get(i)?", discard tile entity":""));
+        else {
+            updateMapping(mb, blkid_map);
+        }
+        if (mb.transparent) {   // Mark new block(s) as letting sky light through
+            if (mb.newRandomIDMeta != null) {
+                for (int i = 0; (i + 1) < mb.newRandomIDMeta.length; i += 2) {
+                    blkid_transparent.set((mb.newRandomIDMeta[i] * 16) + mb.newRandomIDMeta[i + 1]);
+                }
+            }
+            else if (mb.newmeta < 0) {
+                blkid_transparent.set(mb.newblkid * 16, (mb.newblkid * 16) + 16);
+            }
+            else {
+                blkid_transparent.set((mb.newblkid * 16) + mb.newmeta);
             }
         }
     }
-    
-    private static Random rnd = new Random();
-    
+
     private static final int RANDOM_INDEX = 65536;
     
     private static void updateMapping(BlockMapping mb, int[] map) {
@@ -338,6 +615,9 @@ public class WorldMapper {
                     if(mb.tossifunsupported) {
                         blkid_toss_ifunsupported.set(idx);
                     }
+                    if(mb.tossifunattached) {
+                        blkid_toss_ifunattached.set(idx);
+                    }
                 }   
             }
             else {
@@ -348,6 +628,9 @@ public class WorldMapper {
                 if(mb.tossifunsupported) {
                     blkid_toss_ifunsupported.set((mb.blkid*16) + mb.meta);
                 }
+                if(mb.tossifunattached) {
+                    blkid_toss_ifunattached.set((mb.blkid*16) + mb.meta);
+                }
             }            
         }
         else if (mb.meta < 0) {
@@ -366,6 +649,9 @@ public class WorldMapper {
                 if(mb.tossifunsupported) {
                     blkid_toss_ifunsupported.set(idx);
                 }
+                if(mb.tossifunattached) {
+                    blkid_toss_ifunattached.set(idx);
+                }
             }   
         }
         else {
@@ -381,11 +667,65 @@ public class WorldMapper {
             if(mb.tossifunsupported) {
                 blkid_toss_ifunsupported.set((mb.blkid*16) + mb.meta);
             }
+            if(mb.tossifunattached) {
+                blkid_toss_ifunattached.set((mb.blkid*16) + mb.meta);
+            }
         }
     }
     private static boolean update = false;
+    private static boolean inplace = false;     // Rewrite source world in place (journaled region updates)
+    private static boolean deltamode = false;   // Write region deltas (.mcd) instead of region files
+    private static boolean fixlighting = false; // Update HeightMap and sky light of changed columns (--fix-lighting)
+    private static Checkpoint checkpoint = null;    // Journal of completed files, for resuming run
+    private static Quarantine quarantine = null;    // If set, tolerant run: failed chunks and files are left as is
+    private static final String TEMP_SUFFIX = ".wmtmp";    // Outputs are written under this suffix, then renamed
+    // How unchanged files are published to the destination
+    private enum LinkMode { COPY, HARD, REFLINK }
+    private static LinkMode linkmode = LinkMode.COPY;
+    private static volatile boolean linkfailed = false; // Set once linking fails, to stop trying
+    // Which chunk wins when merging a chunk present in both worlds
+    private enum MergePolicy { SOURCE, DEST, NEWEST }
+    private static MergePolicy mergepolicy = MergePolicy.SOURCE;
+    private static File srcroot = null;     // Source world directory
+    private static int readahead = 0;       // Region file read-ahead buffer size (bytes), 0=disabled
+    private static int writebatch = 4 * 1024 * 1024;    // Bytes of encoded chunks to collect per region write, 0=unbatched
+
+    // Collects updated chunks for a region file, writing them in groups
+    private static class WriteBatch {
+        private final RegionFile rf;
+        private final List<RegionFile.ChunkData> chunks = new ArrayList<RegionFile.ChunkData>();
+        private int bytes;
+
+        WriteBatch(RegionFile rf) {
+            this.rf = rf;
+        }
+        void add(int x, int z, Tag<?> lvl) throws IOException {
+            if (writebatch <= 0) {
+                rf.writeChunk(x, z, lvl);
+                return;
+            }
+            add(rf.encodeChunk(x, z, lvl));    // (Oversized chunks are streamed to their external file)
+        }
+        // Add chunk already in compressed form
+        void add(RegionFile.ChunkData cd) throws IOException {
+            chunks.add(cd);
+            bytes += cd.len;
+            if ((bytes >= writebatch) || (writebatch <= 0)) {
+                flush();
+            }
+        }
+        void flush() throws IOException {
+            rf.writeChunks(chunks);
+            rf.commit();    // If journaled, publish batch so the sectors it replaced can be reused
+            chunks.clear();
+            bytes = 0;
+        }
+    }
+    private static CensusIndex census = null;   // If set, census of source world (to skip unaffected chunks)
     
-    private static void doMerge(String[] args) {
+    private static File reportFile = null;
+    
+    private static void doMerge(String[] args, Map<String, String> opts) {
         // Get and validate source directory
         File srcdir = new File(args[1]);
         if (!srcdir.isDirectory()) {
@@ -401,18 +741,97 @@ public class WorldMapper {
             System.err.println("Destination '" + args[2] + "' is not directory.");
             System.exit(1);
         }
+        String policy = opts.get("policy");
+        if (policy != null) {
+            try {
+                mergepolicy = MergePolicy.valueOf(policy.toUpperCase());
+            } catch (IllegalArgumentException iax) {
+                System.err.println("Invalid value for --policy: " + policy);
+                System.exit(1);
+            }
+        }
+        setupLinkMode(opts);
+        WorkerPool pool = new WorkerPool((int) getLongOption(opts, "threads", WorkerPool.defaultThreads()));
+        startMetrics(opts);
         try {
-            processWorldMerge(srcdir, destdir);
+            processWorldMerge(srcdir, destdir, pool);
             
-            System.out.println("World mapping completed");
-            System.exit(0);
+            Log.info("World mapping completed");
+            finish(0);
         } catch (IOException iox) {
-            System.err.println(iox.getMessage());
-            System.exit(1);
+            Log.error(iox.getMessage());
+            finish(1);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Set up logging: --log-level=debug|info|warn|error, --quiet (same as warn), --log-limit=N events printed per category
+    private static void setupLogging(Map<String, String> opts) {
+        String lvl = opts.get("log-level");
+        if (opts.containsKey("quiet")) {
+            lvl = "warn";
+        }
+        if (lvl != null) {
+            try {
+                Log.setLevel(Log.Level.valueOf(lvl.toUpperCase()));
+            } catch (IllegalArgumentException iax) {
+                System.err.println("Invalid value for --log-level: " + lvl);
+                System.exit(1);
+            }
+        }
+        Log.setEventLimit((int) getLongOption(opts, "log-limit", 5));
+    }
+
+    // Set up publishing of unchanged files: --link=copy|hard|reflink
+    private static void setupLinkMode(Map<String, String> opts) {
+        String mode = opts.get("link");
+        if (mode != null) {
+            try {
+                linkmode = LinkMode.valueOf(mode.toUpperCase());
+            } catch (IllegalArgumentException iax) {
+                System.err.println("Invalid value for --link: " + mode);
+                System.exit(1);
+            }
+        }
+    }
+
+    // Set up run metrics: --report=file.json for JSON report at end, --progress=secs for periodic progress line
+    private static void startMetrics(Map<String, String> opts) {
+        readahead = 1024 * (int) getLongOption(opts, "readahead", 0);
+        writebatch = 1024 * (int) getLongOption(opts, "write-batch", writebatch / 1024);
+        long maxmem = getLongOption(opts, "max-memory", 0);
+        if (maxmem > 0) {   // Budget for chunk data in flight, in MB
+            MemoryBudget.setLimit(maxmem * 1024 * 1024);
+            if ((maxmem * 1024 * 1024) > Runtime.getRuntime().maxMemory()) {
+                Log.warn("--max-memory=" + maxmem + " is more than the JVM heap (" + (Runtime.getRuntime().maxMemory() >> 20) + " MB)");
+            }
+        }
+        String rpt = opts.get("report");
+        if (rpt != null) {
+            reportFile = new File(rpt);
+        }
+        Metrics.beginRun();
+        Metrics.startProgress((int) getLongOption(opts, "progress", 0));
+    }
+
+    // Finish run: write report, if requested, and exit
+    private static void finish(int rc) {
+        Metrics.stopProgress();
+        if (reportFile != null) {
+            try {
+                Metrics.writeReport(reportFile);
+                Log.info("Report written to " + reportFile.getPath());
+            } catch (IOException iox) {
+                Log.error("Error writing report " + reportFile.getPath() + ": " + iox.getMessage());
+            }
         }
+        Log.shutdown();
+        System.exit(rc);
     }
     
-    private static void processWorldMerge(File src, File dest) throws IOException {
+    // Find region files to merge under source directory (creating destination directories)
+    private static void discoverWorldMerge(File src, File dest, WorkPlan plan) {
         File[] srcfiles = src.listFiles();
         if (srcfiles == null) return;
         
@@ -421,27 +840,192 @@ public class WorldMapper {
             if (srcfile.isDirectory()) {    // If directory, create copy in destination and recurse
                 File destdir = new File(dest, srcname);
                 destdir.mkdir();
-                processWorldMerge(srcfile, destdir);
+                discoverWorldMerge(srcfile, destdir, plan);
             }
             else if (srcname.endsWith(".mca")) {    // If region file
-                // Merge region files
-                mergeRegionFile(srcfile, new File(dest, srcname));;
+                plan.add(srcfile, new File(dest, srcname));
+            }
+        }
+    }
+
+    // Merge world: discover region files, then merge them on worker pool, largest first
+    private static void processWorldMerge(File src, File dest, WorkerPool pool) throws IOException {
+        WorkPlan plan = new WorkPlan();
+        discoverWorldMerge(src, dest, plan);
+        Log.info(plan.summary() + ", " + pool.getThreads() + " threads");
+        for (final WorkPlan.Item it : plan.getItems()) {
+            submitInput(pool, it.src, new WorkerPool.Task() {
+                public void run() throws IOException {
+                    mergeRegionFile(it.src, it.dest);
+                }
+            });
+        }
+        pool.await();
+    }
+
+    /**
+     * Submit task that consumes given source file: the file is added to the progress total now, and counted as input
+     * as the task works through it (RegionFile.setCountInput()) and once the task is done
+     */
+    private static void submitInput(WorkerPool pool, File srcfile, final WorkerPool.Task task) {
+        final long size = srcfile.length();
+        Metrics.addTotalInput(size);
+        pool.submit(new WorkerPool.Task() {
+            public void run() throws IOException {
+                task.run();
+                Metrics.finishInput(size);
+            }
+        });
+    }
+
+    // Split "--name=value" (or "--flag") options out of the arguments: returns remaining positional arguments
+    static String[] parseOptions(String[] args, Map<String, String> opts) {
+        ArrayList<String> pos = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    opts.put(arg.substring(2), "true");
+                }
+                else {
+                    opts.put(arg.substring(2, eq), arg.substring(eq + 1));
+                }
+            }
+            else {
+                pos.add(arg);
+            }
+        }
+        return pos.toArray(new String[pos.size()]);
+    }
+
+    private static double getDoubleOption(Map<String, String> opts, String name, double def) {
+        String v = opts.get(name);
+        if (v == null) return def;
+        try {
+            return Double.parseDouble(v);
+        } catch (NumberFormatException nfx) {
+            System.err.println("Invalid value for --" + name + ": " + v);
+            System.exit(1);
+            return def;
+        }
+    }
+
+    private static long getLongOption(Map<String, String> opts, String name, long def) {
+        String v = opts.get(name);
+        if (v == null) return def;
+        try {
+            return Long.parseLong(v);
+        } catch (NumberFormatException nfx) {
+            System.err.println("Invalid value for --" + name + ": " + v);
+            System.exit(1);
+            return def;
+        }
+    }
+
+    private static void doGenerate(String[] args) {
+        HashMap<String, String> opts = new HashMap<String, String>();
+        args = parseOptions(args, opts);
+        setupLogging(opts);
+        if (args.length < 2) {
+            System.err.println("Required arguments: generate dest-world-dir [--seed=N] [--regions=N] [--fill=F] [--sections=N] " +
+                "[--tileentities=F] [--modids=MIN-MAX] [--modfraction=F] [--fragmentation=F]");
+            System.exit(1);
+        }
+        WorldGenerator gen = new WorldGenerator();
+        gen.seed = getLongOption(opts, "seed", gen.seed);
+        gen.regions = (int) getLongOption(opts, "regions", gen.regions);
+        gen.fill = getDoubleOption(opts, "fill", gen.fill);
+        gen.sections = (int) getLongOption(opts, "sections", gen.sections);
+        gen.tileentities = getDoubleOption(opts, "tileentities", gen.tileentities);
+        gen.modfraction = getDoubleOption(opts, "modfraction", gen.modfraction);
+        gen.fragmentation = getDoubleOption(opts, "fragmentation", gen.fragmentation);
+        String modids = opts.get("modids");
+        if (modids != null) {
+            int p = modids.indexOf('-');
+            try {
+                gen.modidmin = Integer.parseInt((p < 0) ? modids : modids.substring(0, p));
+                gen.modidmax = Integer.parseInt((p < 0) ? modids : modids.substring(p + 1));
+            } catch (NumberFormatException nfx) {
+                System.err.println("Invalid value for --modids: " + modids);
+                System.exit(1);
             }
         }
+        File destdir = new File(args[1]);
+        if (destdir.exists() && !destdir.isDirectory()) {
+            System.err.println("Destination '" + args[1] + "' is not directory.");
+            System.exit(1);
+        }
+        try {
+            gen.generate(destdir);
+
+            Log.info("World generation completed");
+            finish(0);
+        } catch (IOException iox) {
+            Log.error(iox.getMessage());
+            finish(1);
+        }
     }
 
     /**
      * Main routine for running mapper
-     * 
+     *
      * @param args - <world directory> <map-file> <destination directory>
      */
     public static void main(String[] args) {
+        if ((args.length > 0) && args[0].equals("generate")) {  // Generate synthetic test world in argv[1]
+            doGenerate(args);
+            return;
+        }
+        HashMap<String, String> opts = new HashMap<String, String>();
+        args = parseOptions(args, opts);
+        setupLogging(opts);
+        forkthreads = (int) getLongOption(opts, "threads", WorkerPool.defaultThreads());
+        if ((args.length == 2) && args[0].equals("batch")) {  // Run world mappings listed in job file argv[1]
+            doBatch(args, opts);
+            return;
+        }
         if (args.length < 3) {
-            System.err.println("Required arguments: src-world-dir map-file.json dest-world-dir");
+            System.err.println("Required arguments: src-world-dir map-file.json dest-world-dir [update] [options]");
+            System.err.println("  or: src-world-dir map-file.json src-world-dir --in-place [options]");
+            System.err.println("  or: src-world-dir map-file.json delta-dir --delta [options]");
+            System.err.println("  or: apply delta-dir target-world-dir [options]");
+            System.err.println("  or: batch job-file.json [options]");
+            System.err.println("  or: watch src-world-dir map-file.json mirror-world-dir [--debounce=ms] [--queue=N] [options]");
+            System.err.println("  or: merge src-world-dir dest-world-dir [--policy=source|dest|newest] [options]");
+            System.err.println("  or: analyze src-world-dir map-file.json [--analysis=file.json] [--threads=N] [options]");
+            System.err.println("  or: compile-mapping map-file.json compiled-file");
+            System.err.println("  or: census src-world-dir index-file [--threads=N]");
+            System.err.println("  or: census-query index-file id[:meta] ... [--list]");
+            System.err.println("  or: generate dest-world-dir [options]");
+            System.err.println("Options: --threads=N --in-place --resume --link=copy|hard|reflink --tolerant --quarantine=dir --fix-lighting --census=index-file --readahead=KB --write-batch=KB --max-memory=MB --report=file.json --progress=secs --log-level=debug|info|warn|error --quiet --log-limit=N");
             System.exit(1);
         }
         if (args[0].equals("merge")) {  // Merge argv[1] into argv[2] world directory
-            doMerge(args);
+            doMerge(args, opts);
+            return;
+        }
+        if (args[0].equals("compile-mapping")) {  // Compile mapping argv[1] to binary table argv[2]
+            doCompileMapping(args);
+            return;
+        }
+        if (args[0].equals("census")) {  // Build census index argv[2] of block IDs in world argv[1]
+            doCensus(args, opts);
+            return;
+        }
+        if (args[0].equals("census-query")) {  // Find chunks in census index argv[1] with given IDs
+            doCensusQuery(args, opts);
+            return;
+        }
+        if ((args.length > 3) && args[0].equals("watch")) {  // Keep mirror argv[3] of world argv[1] mapped with argv[2]
+            doWatch(args, opts);
+            return;
+        }
+        if (args[0].equals("apply")) {  // Apply region deltas in argv[1] to world argv[2]
+            doApply(args, opts);
+            return;
+        }
+        if (args[0].equals("analyze")) {  // Report impact of mapping argv[2] on world argv[1], without writing
+            doAnalyze(args, opts);
             return;
         }
         // Get and validate source directory
@@ -451,33 +1035,10 @@ public class WorldMapper {
             System.exit(1);
         }
         // Get and read map file
-        File mapfile = new File(args[1]);
-        if (!mapfile.isFile()) {
-            System.err.println("Mapping file '" + args[0] + "' must be existing JSON encoded mapping file.");
-            System.exit(1);
-        }
-        // Read and parse the file
-        Gson parser = new Gson();
-        Reader rdr = null;
-        try {
-            rdr = new FileReader(mapfile);
-            MappingConfig cfg = parser.fromJson(rdr,  MappingConfig.class);
-            processMapDefinition(cfg);
-        } catch (JsonSyntaxException jsx) {
-            System.err.println("Mapping file syntax error: " + jsx.getMessage());
-            System.exit(1);
-        } catch (JsonIOException jiox) {
-            System.err.println("Mapping file I/O error: " + jiox.getMessage());
-            System.exit(1);
-        } catch (IOException iox) {
-            System.err.println("Mapping file error: " + iox.getMessage());
-            System.exit(1);
-        } finally {
-            if (rdr != null) { try { rdr.close(); } catch (IOException iox) {} }
-        }
+        loadMapping(args[1]);
         if ((args.length > 3) && args[3].equals("update")) {
             update = true;
-            System.out.println("Update changed files only");
+            Log.info("Update changed files only");
         }
         // Check destination
         File destdir = new File(args[2]);
@@ -488,50 +1049,1057 @@ public class WorldMapper {
             System.err.println("Destination '" + args[1] + "' is not directory.");
             System.exit(1);
         }
-        try {
-            if (srcdir.getCanonicalPath().equals(destdir.getCanonicalPath())) {
-                System.err.println("Destination directory cannot be same as source directory.");
+        inplace = opts.containsKey("in-place");
+        deltamode = opts.containsKey("delta");
+        fixlighting = opts.containsKey("fix-lighting");
+        String err = checkMappingRun(srcdir, destdir);
+        if (err != null) {
+            System.err.println(err);
+            System.exit(1);
+        }
+        if (inplace) {
+            Log.info("Updating world in place");
+        }
+        srcroot = srcdir;
+        if (opts.containsKey("census")) {   // Limit mapping to chunks with mapped IDs, per census
+            try {
+                census = CensusIndex.load(new File(opts.get("census")));
+                Log.info("Using census index " + opts.get("census"));
+            } catch (IOException iox) {
+                System.err.println("Error reading census index: " + iox.getMessage());
                 System.exit(1);
             }
-        } catch (IOException e) {
-            System.err.println("Destination directory cannot be same as source directory.");
+        }
+        boolean resume = opts.containsKey("resume");
+        try {   // Completed files are journaled, so a failed run can be continued with --resume
+            checkpoint = new Checkpoint(new File(destdir, Checkpoint.FILENAME), resume);
+            if (resume) {
+                Log.info("Resuming run: " + checkpoint.getDoneCount() + " files already completed");
+            }
+        } catch (IOException iox) {
+            System.err.println("Error opening checkpoint journal: " + iox.getMessage());
             System.exit(1);
         }
+        if (opts.containsKey("tolerant") || opts.containsKey("quarantine")) {  // Keep going past bad chunks and files
+            String qdir = opts.get("quarantine");
+            quarantine = new Quarantine((qdir != null) ? new File(qdir) : null);
+            Log.info("Tolerant run: failed chunks and files are left as is" + ((qdir != null) ? (", and saved to " + qdir) : ""));
+        }
+        setupLinkMode(opts);
+        WorkerPool pool = new WorkerPool((int) getLongOption(opts, "threads", WorkerPool.defaultThreads()));
+        startMetrics(opts);
         try {
-            processWorldMapping(srcdir, destdir);
+            processWorldMapping(srcdir, destdir, pool);
+            checkpoint.close(true);
+            if ((quarantine != null) && (quarantine.size() > 0)) {
+                quarantine.writeReport(new File(destdir, Quarantine.REPORT));
+                Log.warn("World mapping completed with " + quarantine.size() + " chunks or files left as is");
+            }
             
-            System.out.println("World mapping completed");
-            System.exit(0);
+            Log.info("World mapping completed");
+            finish(0);
         } catch (IOException iox) {
-            System.err.println(iox.getMessage());
-            System.exit(1);
+            checkpoint.close(false);
+            Log.error(iox.getMessage());
+            Log.error("Run can be continued with --resume");
+            finish(1);
+        } finally {
+            pool.shutdown();
         }
     }
     
-    private static void processWorldMapping(File src, File dest) throws IOException {
-        File[] srcfiles = src.listFiles();
-        if (srcfiles == null) return;
-        
-        for (File srcfile : srcfiles) {
-            String srcname = srcfile.getName();
-            if (srcfile.isDirectory()) {    // If directory, create copy in destination and recurse
+    // Check settings of mapping run (in place, update, delta, and loaded mapping): returns error, or null if valid
+    private static String checkMappingRun(File srcdir, File destdir) {
+        try {
+            boolean same = srcdir.getCanonicalPath().equals(destdir.getCanonicalPath());
+            if (same != inplace) {
+                return inplace ? "Destination directory must be same as source directory for --in-place." :
+                    "Destination directory cannot be same as source directory (use --in-place to update source).";
+            }
+        } catch (IOException e) {
+            return "Destination directory cannot be same as source directory.";
+        }
+        if (inplace && update) {
+            return "Option update cannot be used with --in-place.";
+        }
+        if (inplace && deltamode) {
+            return "Option --delta cannot be used with --in-place.";
+        }
+        if (inplace && !blkid_toss_ifunattached.isEmpty()) {  // Neighbors must be read from unmodified source
+            return "Mappings with tossifunattached cannot be used with --in-place.";
+        }
+        return null;
+    }
+
+    // Read and load mapping file, JSON or compiled (exits on error)
+    private static void loadMapping(String mapname) {
+        try {
+            readMappingTables(new File(mapname));
+        } catch (IOException iox) {
+            System.err.println(iox.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Read and load mapping file, JSON or compiled: returns loaded tables
+    private static CompiledMapping readMappingTables(File mapfile) throws IOException {
+        if (!CompiledMapping.isCompiled(mapfile)) {
+            processMapDefinition(readMapping(mapfile));
+            return currentMapping();
+        }
+        CompiledMapping cm = CompiledMapping.load(mapfile);
+        applyMapping(cm);
+        File src = new File(cm.sourcePath);
+        if (src.isFile() && (src.lastModified() != cm.sourceModified)) {
+            Log.warn("Mapping " + src.getPath() + " has changed since " + mapfile.getPath() + " was compiled from it");
+        }
+        logMapping("Compiled mapping loaded");
+        return cm;
+    }
+
+    // Check mapping file, and write it in compiled form: compile-mapping map-file.json compiled-file
+    private static void doCompileMapping(String[] args) {
+        File mapfile = new File(args[1]);
+        if (CompiledMapping.isCompiled(mapfile)) {
+            System.err.println("Mapping file '" + args[1] + "' is already compiled.");
+            System.exit(1);
+        }
+        loadMapping(args[1]);
+        CompiledMapping cm = currentMapping();
+        cm.sourcePath = mapfile.getAbsolutePath();
+        cm.sourceModified = mapfile.lastModified();
+        try {
+            cm.save(new File(args[2]));
+            Log.info("Compiled mapping written to " + args[2]);
+            finish(0);
+        } catch (IOException iox) {
+            Log.error("Error writing compiled mapping " + args[2] + ": " + iox.getMessage());
+            finish(1);
+        }
+    }
+
+    // Read mapping file, without loading it
+    private static MappingConfig readMapping(File mapfile) throws IOException {
+        if (!mapfile.isFile()) {
+            throw new IOException("Mapping file '" + mapfile.getPath() + "' must be existing JSON encoded mapping file.");
+        }
+        Gson parser = new Gson();
+        Reader rdr = null;
+        try {
+            rdr = new FileReader(mapfile);
+            MappingConfig cfg = parser.fromJson(rdr,  MappingConfig.class);
+            if ((cfg == null) || (cfg.blocks == null)) {
+                throw new IOException("Mapping file error: 'blocks' array not found.");
+            }
+            return cfg;
+        } catch (JsonSyntaxException jsx) {
+            throw new IOException("Mapping file syntax error: " + jsx.getMessage());
+        } catch (JsonIOException jiox) {
+            throw new IOException("Mapping file I/O error: " + jiox.getMessage());
+        } finally {
+            if (rdr != null) { try { rdr.close(); } catch (IOException iox) {} }
+        }
+    }
+
+    // One world mapping of a batch job file
+    private static class BatchJob {
+        private String name;            // For log and report (default "jobN")
+        private String source;
+        private String mapping;
+        private String destination;     // Not needed for inPlace
+        private boolean inPlace = false;
+        private boolean delta = false;
+        private boolean update = false;
+        private String census;          // Census index of source, if any
+    }
+    private static class BatchConfig {
+        private BatchJob[] jobs;
+    }
+
+    /**
+     * Run the world mappings of a job file in one process: batch job-file.json [options].  Jobs run one after another,
+     * each spread over the one shared worker pool, and options apply to all of them.  Each mapping file is read once,
+     * and all jobs are checked before any starts.  A failed job is reported, and the rest still run.
+     */
+    private static void doBatch(String[] args, Map<String, String> opts) {
+        BatchConfig cfg = null;
+        Reader rdr = null;
+        try {
+            rdr = new FileReader(args[1]);
+            cfg = new Gson().fromJson(rdr, BatchConfig.class);
+        } catch (JsonSyntaxException jsx) {
+            System.err.println("Job file syntax error: " + jsx.getMessage());
+            System.exit(1);
+        } catch (JsonIOException jiox) {
+            System.err.println("Job file I/O error: " + jiox.getMessage());
+            System.exit(1);
+        } catch (IOException iox) {
+            System.err.println("Job file error: " + iox.getMessage());
+            System.exit(1);
+        } finally {
+            if (rdr != null) { try { rdr.close(); } catch (IOException iox) {} }
+        }
+        if ((cfg == null) || (cfg.jobs == null) || (cfg.jobs.length == 0)) {
+            System.err.println("Job file error: 'jobs' array not found.");
+            System.exit(1);
+        }
+        Map<String, CompiledMapping> mappings = new HashMap<String, CompiledMapping>();
+        File[] srcdirs = new File[cfg.jobs.length];
+        for (int i = 0; i < cfg.jobs.length; i++) {
+            BatchJob job = cfg.jobs[i];
+            if ((job == null) || (job.source == null) || (job.mapping == null) || ((job.destination == null) && !job.inPlace)) {
+                System.err.println("Job " + (i + 1) + ": source, mapping and destination are required.");
+                System.exit(1);
+            }
+            if (job.name == null) {
+                job.name = "job" + (i + 1);
+            }
+            srcdirs[i] = new File(job.source);
+            if (!srcdirs[i].isDirectory()) {
+                System.err.println("Job " + job.name + ": source '" + job.source + "' must be existing world directory.");
+                System.exit(1);
+            }
+            if (!mappings.containsKey(job.mapping)) {
+                try {
+                    mappings.put(job.mapping, readMappingTables(new File(job.mapping)));
+                } catch (IOException iox) {
+                    System.err.println("Job " + job.name + ": " + iox.getMessage());
+                    System.exit(1);
+                }
+            }
+        }
+        for (int i = 0; i < cfg.jobs.length; i++) {   // Check settings of each job with its mapping, as it will run
+            BatchJob job = cfg.jobs[i];
+            File destdir = new File(job.inPlace ? job.source : job.destination);
+            inplace = job.inPlace;
+            deltamode = job.delta;
+            update = job.update;
+            String err;
+            try {
+                applyMapping(mappings.get(job.mapping));
+                err = checkMappingRun(srcdirs[i], destdir);
+            } catch (IOException iox) {
+                err = iox.getMessage();
+            }
+            if (err == null) {
+                destdir.mkdirs();
+                if (!destdir.isDirectory()) {
+                    err = "Destination '" + destdir.getPath() + "' is not directory.";
+                }
+            }
+            if (err != null) {
+                System.err.println("Job " + job.name + ": " + err);
+                System.exit(1);
+            }
+        }
+        fixlighting = opts.containsKey("fix-lighting");
+        setupLinkMode(opts);
+        WorkerPool pool = new WorkerPool((int) getLongOption(opts, "threads", WorkerPool.defaultThreads()));
+        startMetrics(opts);
+        List<Object> results = new ArrayList<Object>();
+        int failed = 0;
+        try {
+            for (BatchJob job : cfg.jobs) {
+                Map<String, Object> r = runBatchJob(job, mappings.get(job.mapping), opts, pool);
+                results.add(r);
+                if (!"completed".equals(r.get("status"))) {
+                    failed++;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        Metrics.putReport("jobs", results);
+        if (failed > 0) {
+            Log.error("Batch completed: " + failed + " of " + cfg.jobs.length + " jobs failed (failed jobs can be continued with --resume)");
+            finish(1);
+        }
+        Log.info("Batch completed: " + cfg.jobs.length + " jobs");
+        finish(0);
+    }
+
+    // Run one batch job on shared pool: returns its report entry
+    private static Map<String, Object> runBatchJob(BatchJob job, CompiledMapping mapping, Map<String, String> opts, WorkerPool pool) {
+        File srcdir = new File(job.source);
+        File destdir = new File(job.inPlace ? job.source : job.destination);
+        Map<String, Object> r = new LinkedHashMap<String, Object>();
+        r.put("name", job.name);
+        r.put("source", srcdir.getPath());
+        r.put("destination", destdir.getPath());
+        long[] before = new long[Metrics.Counter.values().length];
+        for (Metrics.Counter c : Metrics.Counter.values()) {
+            before[c.ordinal()] = Metrics.get(c);
+        }
+        long tstart = System.nanoTime();
+        Log.info("Job " + job.name + ": mapping " + srcdir.getPath() + " to " + destdir.getPath() + " with " + job.mapping);
+        // Settings of run are reset for each job
+        inplace = job.inPlace;
+        deltamode = job.delta;
+        update = job.update;
+        srcroot = srcdir;
+        census = null;
+        checkpoint = null;
+        quarantine = null;
+        try {
+            applyMapping(mapping);
+            if (job.census != null) {
+                census = CensusIndex.load(new File(job.census));
+            }
+            checkpoint = new Checkpoint(new File(destdir, Checkpoint.FILENAME), opts.containsKey("resume"));
+            if (opts.containsKey("tolerant") || opts.containsKey("quarantine")) {   // Chunks of each job saved apart
+                String qdir = opts.get("quarantine");
+                quarantine = new Quarantine((qdir != null) ? new File(qdir, job.name) : null);
+            }
+            processWorldMapping(srcdir, destdir, pool);
+            checkpoint.close(true);
+            if ((quarantine != null) && (quarantine.size() > 0)) {
+                quarantine.writeReport(new File(destdir, Quarantine.REPORT));
+            }
+            r.put("status", "completed");
+            Log.info("Job " + job.name + " completed");
+        } catch (IOException iox) {
+            if (checkpoint != null) {
+                checkpoint.close(false);
+            }
+            r.put("status", "failed");
+            r.put("error", iox.getMessage());
+            Log.error("Job " + job.name + " failed: " + iox.getMessage());
+        }
+        r.put("elapsedSeconds", (System.nanoTime() - tstart) / 1e9);
+        Map<String, Object> cnts = new LinkedHashMap<String, Object>();
+        for (Metrics.Counter c : Metrics.Counter.values()) {
+            long v = Metrics.get(c) - before[c.ordinal()];
+            if (v != 0) {
+                cnts.put(c.id, v);
+            }
+        }
+        r.put("counters", cnts);
+        return r;
+    }
+
+    // Impact of mapping on one region (analyze mode)
+    private static class RegionImpact {
+        String path;
+        int chunks;
+        int chunksChanged;
+        int chunksDeleted;
+        long blocksChanged;
+        long tileEntitiesScrubbed;
+        long unsupported;
+        int[] idcounts = new int[blkid_map.length];   // Changed blocks, by source ID*16 + meta
+    }
+    private static final List<RegionImpact> impacts = new ArrayList<RegionImpact>();
+    private static final long[] impact_ids = new long[blkid_map.length];
+
+    private static void doWatch(String[] args, Map<String, String> opts) {
+        final File srcdir = new File(args[1]);
+        if (!srcdir.isDirectory()) {
+            System.err.println("Source '" + args[1] + "' must be existing world directory.");
+            System.exit(1);
+        }
+        loadMapping(args[2]);
+        final File destdir = new File(args[3]);
+        destdir.mkdirs();
+        if (!destdir.isDirectory()) {
+            System.err.println("Mirror '" + args[3] + "' is not directory.");
+            System.exit(1);
+        }
+        srcroot = srcdir;
+        fixlighting = opts.containsKey("fix-lighting");
+        setupLinkMode(opts);
+        startMetrics(opts);
+        try {
+            RegionWatcher watcher = new RegionWatcher(srcdir, getLongOption(opts, "debounce", 2000),
+                (int) getLongOption(opts, "queue", 64), new RegionWatcher.Handler() {
+                    public void regionChanged(File f) throws IOException {
+                        File destfile = new File(destdir, CensusIndex.relativePath(srcdir, f));
+                        destfile.getParentFile().mkdirs();
+                        long size = f.length();
+                        syncRegionFile(f, destfile);
+                        Metrics.add(Metrics.Counter.INPUT_BYTES, size);
+                    }
+                });
+            watcher.run((int) getLongOption(opts, "threads", WorkerPool.defaultThreads()));
+            finish(0);
+        } catch (IOException iox) {
+            Log.error(iox.getMessage());
+            finish(1);
+        }
+    }
+
+    /**
+     * Bring mirror region up to date with source region: chunks whose timestamp differs from the mirror's (mapping keeps
+     * source timestamps) are mapped again, and chunks gone from the source are deleted.  A chunk mapped to empty keeps
+     * its source timestamp in the mirror with no data, as a tombstone, so it is not mapped again until it changes.
+     */
+    private static void syncRegionFile(File srcfile, File destfile) throws IOException {
+        if (!srcfile.exists()) {    // Region deleted
+            if (destfile.delete()) {
+                Log.info("Region " + destfile.getPath() + ": source deleted, mirror dropped");
+            }
+            return;
+        }
+        if (!destfile.exists()) {   // New region: map all of it
+            processRegionFile(srcfile, destfile);
+            return;
+        }
+        RegionFile srcf = null;
+        RegionFile destf = null;
+        Neighborhood nbr = null;
+        try {
+            srcf = new RegionFile(srcfile, true);
+            RegionFile.recoverJournal(destfile);
+            destf = new RegionFile(destfile, true);
+            // Find changed chunks from timestamp tables
+            int[] order = srcf.getChunksBySector();
+            int[] changed = new int[order.length];
+            int ccnt = 0;
+            for (int idx : order) {
+                int x = idx & 31, z = idx >> 5;
+                int ts = destf.getChunkTimestamp(x, z);
+                if ((srcf.getChunkTimestamp(x, z) != ts) || (!destf.chunkExists(x, z) && (ts == 0))) {   // (No tombstone if no timestamp)
+                    changed[ccnt++] = idx;
+                }
+            }
+            int dcnt = 0;
+            for (int idx = 0; idx < 1024; idx++) {
+                if (destf.chunkExists(idx & 31, idx >> 5) && !srcf.chunkExists(idx & 31, idx >> 5)) {
+                    dcnt++;
+                }
+            }
+            destf.cleanup();
+            destf = null;
+            if ((ccnt == 0) && (dcnt == 0)) {
+                Log.debug("Region " + srcfile.getPath() + ": no changed chunks");
+                return;
+            }
+            breakLink(destfile);
+            destf = new RegionFile(destfile);
+            destf.setJournaled(true);   // Mirror may be in use: never expose partial update
+            for (int idx = 0; idx < 1024; idx++) {  // Deleted from source
+                if (destf.chunkExists(idx & 31, idx >> 5) && !srcf.chunkExists(idx & 31, idx >> 5)) {
+                    destf.deleteChunk(idx & 31, idx >> 5);
+                }
+            }
+            WriteBatch batch = new WriteBatch(destf);
+            nbr = newNeighborhood(srcfile);
+            if (nbr != null) {  // Neighbor rules: go row by row
+                Arrays.sort(changed, 0, ccnt);
+            }
+            int mapped = 0;
+            int copied = 0;
+            for (int i = 0; i < ccnt; i++) {
+                int x = changed[i] & 31, z = changed[i] >> 5;
+                RegionFile.ChunkData cd = srcf.readChunkData(x, z);
+                if (cd == null) continue;
+                long mem = MemoryBudget.acquire(MemoryBudget.estimate(cd));
+                try {
+                    MappedChunk mc = new MappedChunk(RegionFile.decodeChunk(cd));
+                    mc.neighbors = nbr;
+                    mc.processChunk();
+                    destf.setChunkTimestamp(x, z, srcf.getChunkTimestamp(x, z));
+                    if (mc.empty) { // Deleted, timestamp kept as tombstone
+                        destf.deleteChunk(x, z);
+                        dcnt++;
+                    }
+                    else if (mc.isChanged()) {
+                        batch.add(x, z, mc.level);
+                        mapped++;
+                    }
+                    else {  // Nothing to map: copy as is
+                        batch.add(cd);
+                        copied++;
+                    }
+                } finally {
+                    MemoryBudget.release(mem);
+                }
+            }
+            batch.flush();
+            destf.commit();
+            Metrics.add(Metrics.Counter.CHUNKS_UPDATED, mapped);
+            Metrics.add(Metrics.Counter.CHUNKS_COPIED, copied);
+            Metrics.add(Metrics.Counter.CHUNKS_DELETED, dcnt);
+            Log.info("Region " + destfile.getPath() + ": " + ccnt + " changed chunks synced (" + mapped + " mapped, " + copied + " copied), " + dcnt + " deleted");
+        } finally {
+            if (nbr != null) {
+                nbr.close();
+            }
+            if (destf != null) {
+                destf.cleanup();
+            }
+            if (srcf != null) {
+                srcf.cleanup();
+            }
+        }
+    }
+
+    private static void doApply(String[] args, Map<String, String> opts) {
+        File deltadir = new File(args[1]);
+        if (!deltadir.isDirectory()) {
+            System.err.println("Delta '" + args[1] + "' must be existing directory.");
+            System.exit(1);
+        }
+        File destdir = new File(args[2]);
+        if (!destdir.isDirectory()) {
+            System.err.println("Target '" + args[2] + "' must be existing world directory.");
+            System.exit(1);
+        }
+        WorkerPool pool = new WorkerPool((int) getLongOption(opts, "threads", WorkerPool.defaultThreads()));
+        startMetrics(opts);
+        try {
+            submitDeltaApply(deltadir, destdir, pool);
+            pool.await();
+
+            Log.info("Deltas applied");
+            finish(0);
+        } catch (IOException iox) {
+            Log.error(iox.getMessage());
+            finish(1);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Queue applying of all region deltas under directory
+    private static void submitDeltaApply(File src, File dest, WorkerPool pool) {
+        File[] srcfiles = src.listFiles();
+        if (srcfiles == null) return;
+
+        for (final File srcfile : srcfiles) {
+            String srcname = srcfile.getName();
+            if (srcfile.isDirectory()) {
                 File destdir = new File(dest, srcname);
                 destdir.mkdir();
-                processWorldMapping(srcfile, destdir);
+                submitDeltaApply(srcfile, destdir, pool);
             }
-            else if (srcname.endsWith(".mca")) {    // If region file
-                processRegionFile(srcfile, new File(dest, srcname));
+            else if (srcname.endsWith(RegionDelta.SUFFIX)) {
+                final File destfile = new File(dest, srcname.substring(0, srcname.length() - RegionDelta.SUFFIX.length()) + ".mca");
+                submitInput(pool, srcfile, new WorkerPool.Task() {
+                    public void run() throws IOException {
+                        applyRegionDelta(srcfile, destfile);
+                    }
+                });
+            }
+        }
+    }
+
+    // Apply region delta to region file, journaled so an interrupted apply leaves the file consistent
+    private static void applyRegionDelta(File deltafile, File destfile) throws IOException {
+        RegionDelta delta = RegionDelta.load(deltafile);
+        RegionFile destf = null;
+        try {
+            if (destfile.exists()) {
+                breakLink(destfile);
+                destf = new RegionFile(destfile);
+            }
+            else {  // New region
+                destf = new RegionFile(destfile);
+                destf.create();
+            }
+            destf.setJournaled(true);
+            delta.applyTo(destf);
+            destf.commit();
+            Metrics.add(Metrics.Counter.REGIONS, 1);
+            Metrics.add(Metrics.Counter.CHUNKS_UPDATED, delta.getWriteCount());
+            Metrics.add(Metrics.Counter.CHUNKS_DELETED, delta.getDeleteCount());
+            if (destf.getChunkCount() == 0) {
+                destf.cleanup();
+                destfile.delete();
+                Log.info("Region " + destfile.getPath() + ": all chunks deleted, file dropped");
+            }
+            else {
+                Log.info("Region " + destfile.getPath() + ": " + delta.getWriteCount() + " chunks updated, " + delta.getDeleteCount() + " deleted");
+            }
+        } finally {
+            if (destf != null) {
+                destf.cleanup();
+            }
+        }
+    }
+
+    private static void doAnalyze(String[] args, Map<String, String> opts) {
+        // Get and validate source directory
+        File srcdir = new File(args[1]);
+        if (!srcdir.isDirectory()) {
+            System.err.println("Source '" + args[1] + "' must be existing world directory.");
+            System.exit(1);
+        }
+        loadMapping(args[2]);
+        String out = opts.get("analysis");
+        WorkerPool pool = new WorkerPool((int) getLongOption(opts, "threads", WorkerPool.defaultThreads()));
+        startMetrics(opts);
+        try {
+            submitRegionAnalysis(srcdir, pool);
+            pool.await();
+            writeAnalysis(srcdir, (out != null) ? new File(out) : null);
+
+            Log.info("World analysis completed");
+            finish(0);
+        } catch (IOException iox) {
+            Log.error(iox.getMessage());
+            finish(1);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Queue analysis of all region files under directory
+    private static void submitRegionAnalysis(File src, WorkerPool pool) {
+        File[] srcfiles = src.listFiles();
+        if (srcfiles == null) return;
+
+        for (final File srcfile : srcfiles) {
+            if (srcfile.isDirectory()) {
+                submitRegionAnalysis(srcfile, pool);
+            }
+            else if (srcfile.getName().endsWith(".mca")) {
+                submitInput(pool, srcfile, new WorkerPool.Task() {
+                    public void run() throws IOException {
+                        analyzeRegionFile(srcfile);
+                    }
+                });
+            }
+        }
+    }
+
+    // Run mapping over region file without writing anything
+    private static void analyzeRegionFile(File srcfile) throws IOException {
+        RegionImpact ri = new RegionImpact();
+        ri.path = srcfile.getPath();
+        RegionFile srcf = null;
+        Neighborhood nbr = null;
+        try {
+            srcf = new RegionFile(srcfile, true);
+            srcf.setCountInput(true);
+            srcf.setReadAhead(readahead);
+            nbr = newNeighborhood(srcfile);
+            for (int idx : (nbr != null) ? srcf.getChunksByIndex() : srcf.getChunksBySector()) {
+                int x = idx & 31, z = idx >> 5;
+                ri.chunks++;
+                RegionFile.ChunkData cd = srcf.readChunkData(x, z);
+                if (cd == null) { Log.warn("Chunk " + x + "," + z + " exists but not read"); continue; }
+                MappedChunk mc;
+                long mem = MemoryBudget.acquire(MemoryBudget.estimate(cd));
+                try {
+                    long tstart = Metrics.start();
+                    mc = new MappedChunk(RegionFile.decodeChunk(cd));
+                    mc.idcounts = ri.idcounts;
+                    mc.neighbors = nbr;
+                    mc.processChunk();
+                    Metrics.stop(Metrics.Stage.MAP, tstart);
+                } finally {
+                    MemoryBudget.release(mem);
+                }
+                if (mc.empty) {
+                    ri.chunksDeleted++;
+                }
+                else if (mc.isChanged()) {
+                    ri.chunksChanged++;
+                }
+                ri.blocksChanged += mc.bcnt;
+                ri.tileEntitiesScrubbed += mc.tescrubbed;
+                ri.unsupported += mc.unsupported;
+            }
+        } finally {
+            if (nbr != null) {
+                nbr.close();
+            }
+            if (srcf != null) {
+                srcf.cleanup();
+            }
+        }
+        Metrics.add(Metrics.Counter.REGIONS, 1);
+        if ((ri.chunksChanged > 0) || (ri.chunksDeleted > 0)) {
+            Log.info("Region " + ri.path + ", " + ri.chunks + " chunks: would update " + ri.blocksChanged + " blocks in " + ri.chunksChanged +
+                " chunks, delete " + ri.chunksDeleted + " chunks, scrub " + ri.tileEntitiesScrubbed + " TileEntities");
+        }
+        synchronized (impacts) {
+            impacts.add(ri);
+            for (int i = 0; i < ri.idcounts.length; i++) {
+                impact_ids[i] += ri.idcounts[i];
+            }
+        }
+        ri.idcounts = compactCounts(ri.idcounts);
+    }
+
+    // Drop zero entries from ID count array: returns pairs of (ID*16 + meta, count), or null if none
+    private static int[] compactCounts(int[] counts) {
+        int n = 0;
+        for (int c : counts) {
+            if (c != 0) n++;
+        }
+        if (n == 0) return null;
+        int[] v = new int[2 * n];
+        for (int i = 0, j = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                v[j++] = i;
+                v[j++] = counts[i];
+            }
+        }
+        return v;
+    }
+
+    private static String idMetaString(int idmeta) {
+        return (idmeta >> 4) + ":" + (idmeta & 0xF);
+    }
+
+    // Print analysis summary, and write JSON version if file given
+    private static void writeAnalysis(File srcdir, File out) throws IOException {
+        Map<String, Object> r = new LinkedHashMap<String, Object>();
+        long chunks = 0, changed = 0, deleted = 0, blocks = 0, tes = 0;
+        int affected = 0;
+        List<Object> regions = new ArrayList<Object>();
+        synchronized (impacts) {
+            for (RegionImpact ri : impacts) {
+                chunks += ri.chunks;
+                changed += ri.chunksChanged;
+                deleted += ri.chunksDeleted;
+                blocks += ri.blocksChanged;
+                tes += ri.tileEntitiesScrubbed;
+                if ((ri.chunksChanged == 0) && (ri.chunksDeleted == 0)) continue;
+                affected++;
+                Map<String, Object> rr = new LinkedHashMap<String, Object>();
+                rr.put("path", ri.path);
+                rr.put("chunks", ri.chunks);
+                rr.put("chunksChanged", ri.chunksChanged);
+                rr.put("chunksDeleted", ri.chunksDeleted);
+                rr.put("blocksChanged", ri.blocksChanged);
+                rr.put("tileEntitiesScrubbed", ri.tileEntitiesScrubbed);
+                rr.put("unsupportedRemoved", ri.unsupported);
+                Map<String, Object> ids = new LinkedHashMap<String, Object>();
+                if (ri.idcounts != null) {
+                    for (int i = 0; i < ri.idcounts.length; i += 2) {
+                        ids.put(idMetaString(ri.idcounts[i]), ri.idcounts[i+1]);
+                    }
+                }
+                rr.put("ids", ids);
+                regions.add(rr);
+            }
+            Map<String, Object> totals = new LinkedHashMap<String, Object>();
+            totals.put("regions", impacts.size());
+            totals.put("regionsAffected", affected);
+            totals.put("chunks", chunks);
+            totals.put("chunksChanged", changed);
+            totals.put("chunksDeleted", deleted);
+            totals.put("blocksChanged", blocks);
+            totals.put("tileEntitiesScrubbed", tes);
+            r.put("world", srcdir.getPath());
+            r.put("totals", totals);
+            Map<String, Object> ids = new LinkedHashMap<String, Object>();
+            for (int i = 0; i < impact_ids.length; i++) {
+                if (impact_ids[i] != 0) {
+                    ids.put(idMetaString(i), impact_ids[i]);
+                    Log.debug("ID " + idMetaString(i) + ": " + impact_ids[i] + " blocks changed");
+                }
+            }
+            r.put("ids", ids);
+            r.put("regions", regions);
+        }
+        Log.info("Analysis: " + affected + " of " + impacts.size() + " regions affected, " + changed + " of " + chunks + " chunks changed, " +
+            deleted + " deleted, " + blocks + " blocks changed, " + tes + " TileEntities scrubbed");
+        if (out != null) {
+            Writer w = new FileWriter(out);
+            try {
+                new GsonBuilder().setPrettyPrinting().create().toJson(r, w);
+            } finally {
+                w.close();
+            }
+            Log.info("Analysis written to " + out.getPath());
+        }
+    }
+
+    private static void doCensus(String[] args, Map<String, String> opts) {
+        // Get and validate source directory
+        final File srcdir = new File(args[1]);
+        if (!srcdir.isDirectory()) {
+            System.err.println("Source '" + args[1] + "' must be existing world directory.");
+            System.exit(1);
+        }
+        File idxfile = new File(args[2]);
+        final CensusIndex idx = new CensusIndex();
+        WorkerPool pool = new WorkerPool((int) getLongOption(opts, "threads", WorkerPool.defaultThreads()));
+        startMetrics(opts);
+        try {
+            submitRegionCensus(srcdir, srcdir, idx, pool);
+            pool.await();
+            idx.save(idxfile);
+
+            Log.info("Census of " + idx.getRegions().size() + " regions written to " + idxfile.getPath());
+            finish(0);
+        } catch (IOException iox) {
+            Log.error(iox.getMessage());
+            finish(1);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Queue census of all region files under directory
+    private static void submitRegionCensus(final File worlddir, File src, final CensusIndex idx, WorkerPool pool) {
+        File[] srcfiles = src.listFiles();
+        if (srcfiles == null) return;
+
+        for (final File srcfile : srcfiles) {
+            if (srcfile.isDirectory()) {
+                submitRegionCensus(worlddir, srcfile, idx, pool);
+            }
+            else if (srcfile.getName().endsWith(".mca")) {
+                submitInput(pool, srcfile, new WorkerPool.Task() {
+                    public void run() throws IOException {
+                        censusRegionFile(worlddir, srcfile, idx);
+                    }
+                });
+            }
+        }
+    }
+
+    // Record block ID:meta values present in each chunk of region file
+    private static void censusRegionFile(File worlddir, File srcfile, CensusIndex idx) throws IOException {
+        long mod = srcfile.lastModified();
+        long len = srcfile.length();
+        int[][] vals = new int[1024][];
+        int[] ts = new int[1024];
+        BitSet work = new BitSet();
+        int cnt = 0;
+        RegionFile srcf = null;
+        try {
+            srcf = new RegionFile(srcfile, true);
+            srcf.setCountInput(true);
+            srcf.setReadAhead(readahead);
+            for (int ci : srcf.getChunksBySector()) {   // Read in file order
+                int x = ci & 31, z = ci >> 5;
+                RegionFile.ChunkData cd = srcf.readChunkData(x, z);
+                if (cd == null) { Log.warn("Chunk " + x + "," + z + " exists but not read"); continue; }
+                long mem = MemoryBudget.acquire(MemoryBudget.estimate(cd));
+                try {
+                    vals[ci] = CensusIndex.scanChunk(RegionFile.decodeChunk(cd), work);
+                } finally {
+                    MemoryBudget.release(mem);
+                }
+                ts[ci] = srcf.getChunkTimestamp(x, z);
+                cnt++;
+            }
+        } finally {
+            if (srcf != null) {
+                srcf.cleanup();
+            }
+        }
+        idx.addRegion(CensusIndex.relativePath(worlddir, srcfile), mod, len, vals, ts);
+        Metrics.add(Metrics.Counter.REGIONS, 1);
+        Log.debug("Census of " + srcfile.getPath() + ": " + cnt + " chunks");
+    }
+
+    // Query census index: census-query index-file id[:meta] ...
+    private static void doCensusQuery(String[] args, Map<String, String> opts) {
+        if (args.length < 3) {
+            System.err.println("Required arguments: census-query index-file id[:meta] ...");
+            System.exit(1);
+        }
+        BitSet match = new BitSet();
+        for (int i = 2; i < args.length; i++) {
+            String v = args[i];
+            int p = v.indexOf(':');
+            try {
+                int id = Integer.parseInt((p < 0) ? v : v.substring(0, p));
+                if (p < 0) {
+                    match.set(id * 16, (id * 16) + 16);
+                }
+                else {
+                    match.set((id * 16) + Integer.parseInt(v.substring(p + 1)));
+                }
+            } catch (NumberFormatException nfx) {
+                System.err.println("Invalid ID: " + v);
+                System.exit(1);
+            }
+        }
+        boolean list = opts.containsKey("list");
+        try {
+            CensusIndex idx = CensusIndex.load(new File(args[1]));
+            int rcnt = 0;
+            long ccnt = 0;
+            for (CensusIndex.Region r : idx.getRegions()) {
+                int[][] vals = r.getChunkValues(null);
+                StringBuilder sb = new StringBuilder();
+                int n = 0;
+                for (int c = 0; c < vals.length; c++) {
+                    if (vals[c] == null) continue;
+                    for (int v : vals[c]) {
+                        if (match.get(v)) {
+                            n++;
+                            if (list) sb.append(' ').append(c & 31).append(',').append(c >> 5);
+                            break;
+                        }
+                    }
+                }
+                if (n > 0) {
+                    rcnt++;
+                    ccnt += n;
+                    Log.info(r.path + ": " + n + " chunks" + sb.toString());
+                }
+            }
+            Log.info("Found in " + ccnt + " chunks in " + rcnt + " regions");
+            finish(0);
+        } catch (IOException iox) {
+            Log.error(iox.getMessage());
+            finish(1);
+        }
+    }
+
+    // Get neighborhood for mapping chunks of source region file, if mapping has rules that look at neighbors
+    private static Neighborhood newNeighborhood(File srcfile) {
+        if (blkid_toss_ifunattached.isEmpty()) {
+            return null;
+        }
+        return new Neighborhood(srcfile.getParentFile(), Neighborhood.DEFAULT_CHUNKS);
+    }
+
+    // Test if any of given block ID:meta values (from census) would be affected by the mapping
+    private static boolean chunkNeedsMapping(int[] vals) {
+        if ((vals == null) || (vals.length == 0)) {  // Unknown, or all air (will be dropped as empty)
+            return true;
+        }
+        for (int v : vals) {
+            if ((blkid_map[v] != v) || blkid_biome_specific.get(v) || blkid_toss_ifunsupported.get(v) || blkid_toss_ifunattached.get(v)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Find files to map under source directory (creating destination directories)
+    private static void discoverWorldMapping(File src, File dest, WorkPlan plan) {
+        File[] srcfiles = src.listFiles();
+        if (srcfiles == null) return;
+        
+        for (File srcfile : srcfiles) {
+            String srcname = srcfile.getName();
+            if (srcfile.isDirectory()) {    // If directory, create copy in destination and recurse
+                File destdir = new File(dest, srcname);
+                destdir.mkdir();
+                discoverWorldMapping(srcfile, destdir, plan);
+                continue;
+            }
+            if (srcname.equals(Checkpoint.FILENAME) || srcname.endsWith(TEMP_SUFFIX) ||
+                srcname.endsWith(RegionFile.JOURNAL_SUFFIX) || srcname.endsWith(RegionFile.PROGRESS_SUFFIX)) {  // Our own working files
+                continue;
+            }
+            if (srcname.endsWith(RegionFile.EXTERNAL_SUFFIX)) {    // External chunk: handled with its region file
+                continue;
+            }
+            if (checkpoint.isDone(CensusIndex.relativePath(srcroot, srcfile), srcfile)) {
+                Log.debug("Skipped " + srcfile.getPath() + ": completed by previous run");
+                Metrics.add(Metrics.Counter.FILES_RESUMED, 1);
+                Metrics.addTotalInput(srcfile.length());
+                Metrics.add(Metrics.Counter.INPUT_BYTES, srcfile.length());
+                continue;
+            }
+            plan.add(srcfile, new File(dest, srcname));
+        }
+    }
+
+    // Map world: discover files, then process them on worker pool, largest first
+    private static void processWorldMapping(File src, File dest, WorkerPool pool) throws IOException {
+        WorkPlan plan = new WorkPlan();
+        discoverWorldMapping(src, dest, plan);
+        Log.info(plan.summary() + ", " + pool.getThreads() + " threads");
+        for (final WorkPlan.Item it : plan.getItems()) {
+            submitInput(pool, it.src, new WorkerPool.Task() {
+                public void run() throws IOException {
+                    processFile(it.src, it.dest);
+                }
+            });
+        }
+        pool.await();
+    }
+
+    // Map one file
+    private static void processFile(File srcfile, File destfile) throws IOException {
+        String srcname = srcfile.getName();
+        boolean failed = false;
+        try {
+            if (srcname.endsWith(".mca")) {    // If region file
+                processRegionFile(srcfile, destfile);
             }
             else if (srcname.endsWith(".schematic")) {  // If schematic file
-                processSchematicFile(srcfile, new File(dest, srcname));
+                processSchematicFile(srcfile, destfile);
             }
             else if (srcname.endsWith(".bo2")) {  // If schematic file
-                processBO2File(srcfile, new File(dest, srcname));
+                processBO2File(srcfile, destfile);
             }
             //TODO: other file types we need to handle : level.dat
-            
+
+            else if (inplace || deltamode) { // Nothing to copy
+            }
             else {  // Else, just copy file
-                processFileCopy(srcfile, new File(dest, srcname));
+                processFileCopy(srcfile, destfile);
+            }
+        } catch (IOException iox) {
+            if (quarantine == null) throw iox;
+            failFile(srcfile, destfile, String.valueOf(iox));
+            failed = true;
+        } catch (RuntimeException rx) {    // Malformed NBT can also fail in parsing
+            if (quarantine == null) throw rx;
+            failFile(srcfile, destfile, String.valueOf(rx));
+            failed = true;
+        }
+        checkpoint.markDone(CensusIndex.relativePath(srcroot, srcfile), srcfile);
+        if (inplace && !failed) {   // Region complete, and recorded as such: drop its progress
+            RegionFile.deleteProgress(srcfile);
+        }
+    }
+
+    // Tolerant run: record file that failed, and pass it through as is
+    private static void failFile(File srcfile, File destfile, String error) throws IOException {
+        quarantine.addFile(srcfile, error);
+        if (!inplace && !deltamode) {
+            processFileCopy(srcfile, destfile);
+        }
+    }
+
+    // Tolerant run: record chunk that failed (left as is in output), with its raw data if that can be read
+    private static void failChunk(RegionFile srcf, File srcfile, int x, int z, Exception fx) {
+        RegionFile.ChunkData raw = null;
+        try {
+            raw = srcf.readChunkData(x, z);
+        } catch (IOException iox) {
+        }
+        quarantine.addChunk(srcfile, CensusIndex.relativePath(srcroot, srcfile), x, z, String.valueOf(fx), raw);
+    }
+
+    /**
+     * Copy external files of oversized chunks of source region, for chunks passed through to destination region as is
+     * @param srcf - source region
+     * @param srcfile - source region file
+     * @param destfile - destination region file
+     * @param skip - chunks not to copy (rewritten or deleted in destination)
+     */
+    private static void copyExternalChunks(RegionFile srcf, File srcfile, File destfile, BitSet skip) throws IOException {
+        for (int idx : srcf.getChunksByIndex()) {
+            if (skip.get(idx)) continue;
+            File ext = RegionFile.getExternalFile(srcfile, idx & 31, idx >> 5);
+            if ((ext != null) && ext.exists()) {
+                processFileCopy(ext, RegionFile.getExternalFile(destfile, idx & 31, idx >> 5));
+            }
+        }
+    }
+
+    // Temporary file for building given output
+    private static File tempFile(File destfile) {
+        return new File(destfile.getPath() + TEMP_SUFFIX);
+    }
+
+    // Sync completed temporary file and rename it to its final name
+    private static void publish(File tmpfile, File destfile) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(tmpfile, "r");
+        try {
+            f.getFD().sync();
+        } finally {
+            f.close();
+        }
+        if (!tmpfile.renameTo(destfile)) {
+            destfile.delete();  // Some platforms will not rename over existing file
+            if (!tmpfile.renameTo(destfile)) {
+                throw new IOException("Cannot rename " + tmpfile.getPath() + " to " + destfile.getPath());
             }
         }
     }
@@ -539,67 +2107,309 @@ public class WorldMapper {
     private static void processRegionFile(File srcfile, File destfile) throws IOException {
         boolean success = false;
         int bcnt = 0;
+        int icnt = 0;
         int tecnt = 0;
+        int ucnt = 0;
         int cupdated = 0;
+        int skipped = 0;
+        int resumed = 0;
+        RegionFile srcf = null;
         RegionFile destf = null;
+        RegionDelta delta = null;
+        Neighborhood nbr = null;
+        if (deltamode) {    // Output is delta of changed chunks
+            String name = destfile.getName();
+            destfile = new File(destfile.getParentFile(), name.substring(0, name.length() - 4) + RegionDelta.SUFFIX);
+            delta = new RegionDelta();
+        }
         if (update && (srcfile.lastModified() == destfile.lastModified())) {
-            System.out.println("Region " + destfile.getPath() + ": source unchaged");
+            Log.info("Region " + destfile.getPath() + ": source unchaged");
             return;
         }
+        File outfile = inplace ? destfile : tempFile(destfile);
+        int[][] censusvals = null;
+        if ((census != null) && (item_map.size() == 0)) {   // If census available, and current, use it to skip chunks without mapped IDs (census has no item IDs)
+            CensusIndex.Region cr = census.getRegion(CensusIndex.relativePath(srcroot, srcfile));
+            if ((cr != null) && cr.isCurrent(srcfile)) {
+                censusvals = cr.getChunkValues(null);
+            }
+        }
         try {
-            // Copy source file to destination
-            processFileCopy(srcfile, destfile);
-            // Load region file
-            destf = new RegionFile(destfile);
-            destf.load();
+            BitSet prior = null;    // Chunks already mapped in place by an interrupted run
+            if (inplace) {  // Finish any interrupted update before reading
+                RegionFile.recoverJournal(srcfile);
+                prior = RegionFile.readProgress(srcfile);
+                if ((prior != null) && !checkpoint.isResumed()) {   // Mapping its committed chunks again would map them twice
+                    throw new IOException("Region " + srcfile.getPath() + " was partly mapped in place by an interrupted run: continue it with --resume");
+                }
+            }
+            // Read from source: output is only created once a chunk changes
+            srcf = new RegionFile(srcfile, true);
+            srcf.setCountInput(true);
+            srcf.setReadAhead(readahead);
+            nbr = newNeighborhood(srcfile);
             int cnt = 0;
             int dcnt = 0;
-            for (int x = 0; x < 32; x++) {
-                for (int z = 0; z < 32; z++) {
-                    if(destf.chunkExists(x, z)) {   // If chunk exists
-                        cnt++;
-                        Tag<?> tag = destf.readChunk(x, z);
-                        if (tag == null) { System.err.println("Chunk " + x + "," + z + " exists but not read"); continue; }
-                        MappedChunk mc = new MappedChunk(tag);
+            WriteBatch batch = null;
+            BitSet written = new BitSet();  // Chunks rewritten or deleted in output
+            // Read in file order - or row by row, if neighbor rules need to see around each chunk
+            for (int idx : (nbr != null) ? srcf.getChunksByIndex() : srcf.getChunksBySector()) {
+                int x = idx & 31, z = idx >> 5;
+                cnt++;
+                if ((prior != null) && prior.get(idx)) {  // Committed by interrupted run
+                    resumed++;
+                    continue;
+                }
+                if ((censusvals != null) && !chunkNeedsMapping(censusvals[idx])) {
+                    skipped++;
+                    continue;
+                }
+                long mem = 0;   // Memory budget held for chunk
+                try {
+                    long cstart = Metrics.start();
+                    MappedChunk mc;
+                    try {
+                        RegionFile.ChunkData cd = srcf.readChunkData(x, z);
+                        if (cd == null) { Log.warn("Chunk " + x + "," + z + " exists but not read"); continue; }
+                        mem = MemoryBudget.acquire(MemoryBudget.estimate(cd));
+                        Tag<?> tag = RegionFile.decodeChunk(cd);
+                        long tstart = Metrics.start();
+                        mc = new MappedChunk(tag);
+                        mc.neighbors = nbr;
                         mc.processChunk();
-                        // Test if chunk is empty
-                        if (mc.empty) {
+                        Metrics.stop(Metrics.Stage.MAP, tstart);
+                    } catch (IOException iox) {
+                        if (quarantine == null) throw iox;
+                        failChunk(srcf, srcfile, x, z, iox);
+                        continue;
+                    } catch (RuntimeException rx) {    // Malformed chunk data can also fail in NBT parsing
+                        if (quarantine == null) throw rx;
+                        failChunk(srcf, srcfile, x, z, rx);
+                        continue;
+                    }
+                    ucnt += mc.unsupported;
+                    if ((destf == null) && (delta == null) && (mc.empty || mc.isChanged())) {   // First change: set up output
+                        destf = openRegionOutput(srcfile, outfile);
+                        batch = new WriteBatch(destf);
+                    }
+                    // Test if chunk is empty
+                    if (mc.empty) {
+                        if (delta != null) {
+                            delta.delete(x, z);
+                        }
+                        else {
                             destf.deleteChunk(x, z);    // Delete it
-                            dcnt++;
                         }
-                        // Test if updated
-                        else if (mc.bcnt > 0) {
-                            bcnt += mc.bcnt;
-                            tecnt += mc.tescrubbed;
-                            cupdated++;
-                            // Write updated chunk data
-                            destf.writeChunk(x, z, mc.level);
+                        written.set(idx);
+                        dcnt++;
+                    }
+                    // Test if updated
+                    else if (mc.isChanged()) {
+                        written.set(idx);
+                        bcnt += mc.bcnt;
+                        icnt += mc.icnt;
+                        tecnt += mc.tescrubbed;
+                        cupdated++;
+                        // Write updated chunk data
+                        if (delta != null) {
+                            BufferOutputStream buf = RegionFile.encodeChunk(mc.level);
+                            delta.write(x, z, srcf.getChunkTimestamp(x, z), new RegionFile.ChunkData(x, z, buf.buf, buf.len));
+                        }
+                        else {
+                            batch.add(x, z, mc.level);
                         }
                     }
+                    Metrics.chunkLatency.record((System.nanoTime() - cstart) / 1000);
+                } finally {
+                    MemoryBudget.release(mem);
                 }
             }
+            if (destf != null) {
+                batch.flush();
+                destf.commit();
+            }
+            if (!inplace && (delta == null) && (dcnt < cnt)) {   // Chunks passed through may be stored externally
+                copyExternalChunks(srcf, srcfile, destfile, written);
+            }
             success = true;
-            if (dcnt == cnt) {  // Deleted all the chunks found?
-                System.out.println("Region " + destfile.getPath() + ", all " + cnt + " chunks deleted: file dropped");
+            Metrics.add(Metrics.Counter.REGIONS, 1);
+            Metrics.add(Metrics.Counter.CHUNKS_UPDATED, cupdated);
+            Metrics.add(Metrics.Counter.CHUNKS_DELETED, dcnt);
+            Metrics.add(Metrics.Counter.CHUNKS_SKIPPED, skipped);
+            Metrics.add(Metrics.Counter.CHUNKS_RESUMED, resumed);
+            Metrics.add(Metrics.Counter.BLOCKS_MAPPED, bcnt);
+            Metrics.add(Metrics.Counter.TILEENTITIES_SCRUBBED, tecnt);
+            if (delta != null) {
+                if (delta.isEmpty()) {
+                    Metrics.add(Metrics.Counter.REGIONS_UNCHANGED, 1);
+                    destfile.delete();  // Drop delta left by earlier run
+                }
+                else {
+                    delta.save(outfile);
+                }
+                Log.info("Region " + srcfile.getPath() + ", " + cnt + " chunks: " + (delta.isEmpty() ? "unchanged, no delta" :
+                    ("delta " + destfile.getPath() + " of " + delta.getWriteCount() + " updated, " + delta.getDeleteCount() + " deleted chunks")));
+            }
+            else if (dcnt == cnt) {  // Deleted all the chunks found?
+                Log.info("Region " + destfile.getPath() + ", all " + cnt + " chunks deleted: file dropped");
+                srcf.cleanup();
+                if (destf != null) destf.cleanup();
+                RegionFile.deleteExternalFiles(destfile);   // Oversized chunks of region are gone with it
+                outfile.delete();
                 destfile.delete();
             }
+            else if (destf == null) {   // No changes: publish source as is
+                Metrics.add(Metrics.Counter.REGIONS_UNCHANGED, 1);
+                String how = inplace ? "left as is" : cloneFile(srcfile, outfile);
+                Log.info("Region " + destfile.getPath() + ", " + cnt + " chunks: unchanged, " + how +
+                    ((skipped > 0) ? (", " + skipped + " chunks skipped by census") : "") +
+                    ((resumed > 0) ? (", " + resumed + " chunks mapped by interrupted run") : ""));
+            }
             else {
-                System.out.println("Region " + destfile.getPath() + ", " + cnt + " chunks: updated " + bcnt + " blocks in " + cupdated + " chunks, Deleted " + dcnt + " chunks, " + tecnt + " TileEntities scrubbed");
+                Log.info("Region " + destfile.getPath() + ", " + cnt + " chunks: updated " + bcnt + " blocks in " + cupdated + " chunks, Deleted " + dcnt + " chunks, " + tecnt + " TileEntities scrubbed" +
+                    ((ucnt > 0) ? (", " + ucnt + " unsupported blocks removed") : "") +
+                    ((icnt > 0) ? (", " + icnt + " items remapped") : "") +
+                    ((skipped > 0) ? (", " + skipped + " chunks skipped by census") : "") +
+                    ((resumed > 0) ? (", " + resumed + " chunks mapped by interrupted run") : ""));
             }
             		
         } finally {
-            if (!success) {
-                destfile.delete();
+            if (nbr != null) {
+                nbr.close();
             }
-            else {
-                destfile.setLastModified(srcfile.lastModified()); // Preserve last modified
+            if (srcf != null) {
+                srcf.cleanup();
             }
             if (destf != null) {
-                destf.cleanup();
+                destf.cleanup();    // Discards uncommitted changes, if in place
+            }
+            if (inplace) {  // Source is updated (or untouched, if failed)
+            }
+            else if (!success) {
+                outfile.delete();
+            }
+            else if (outfile.exists()) {
+                if ((destf != null) || (delta != null)) {    // (Else cloneFile() preserved it)
+                    outfile.setLastModified(srcfile.lastModified()); // Preserve last modified
+                }
+                publish(outfile, destfile);
+            }
+        }
+    }
+
+    // Open output for changed region: copy of source, or source itself (journaled) if in place
+    private static RegionFile openRegionOutput(File srcfile, File outfile) throws IOException {
+        if (inplace) {
+            breakLink(srcfile);
+        }
+        else {
+            copyFile(srcfile, outfile);
+        }
+        RegionFile destf = new RegionFile(outfile);
+        destf.setJournaled(inplace);    // In place: changes only become visible at commit
+        if (inplace) {  // Each batch commits: record chunks done, so an interrupted region is never mapped twice
+            destf.trackProgress();
+        }
+        return destf;
+    }
+
+    /**
+     * Remap of a range of schematic blocks (by index).  Ranges larger than MIN_BLOCKS are split in halves (on Y layer
+     * boundaries, if the range spans more than one layer) and run as fork-join tasks.  Split points are always even,
+     * so the two blocks sharing an AddBlocks byte are in the same task.
+     */
+    static class SchematicSlab extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        static final int MIN_BLOCKS = 1 << 18;
+        final WESchematicFile sch;
+        final int start, end;
+        int bcnt;   // Number of blocks mapped
+        List<Integer> tileents = new ArrayList<Integer>();  // Indexes of blocks with tile entity to scrub
+
+        SchematicSlab(WESchematicFile sch, int start, int end) {
+            this.sch = sch;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            int n = end - start;
+            if (n <= MIN_BLOCKS) {
+                remap();
+                return;
+            }
+            int mid = split(start, end, sch.width * sch.length);
+            SchematicSlab lo = new SchematicSlab(sch, start, mid);
+            SchematicSlab hi = new SchematicSlab(sch, mid, end);
+            invokeAll(lo, hi);
+            bcnt = lo.bcnt + hi.bcnt;
+            tileents = lo.tileents;
+            tileents.addAll(hi.tileents);
+        }
+
+        /**
+         * Get split point of range of blocks: the middle, moved down to a layer boundary if the range spans more than
+         * one layer, then down to even.  If that leaves either half empty (odd layer area), just the middle made even.
+         * @param start - first block index of range (even)
+         * @param end - end of range (more than start + 2)
+         * @param area - blocks per Y layer
+         */
+        static int split(int start, int end, int area) {
+            int n = end - start;
+            int mid = start + (n / 2);
+            if ((n > area) && (((mid / area) * area) > start)) {
+                mid = (mid / area) * area;
+            }
+            mid &= ~1;
+            if ((mid <= start) || (mid >= end)) {
+                mid = (start + (n / 2)) & ~1;
+            }
+            return mid;
+        }
+
+        private void remap() {
+            for (int i = start; i < end; i++) {
+                int idmetaval = sch.getIDMeta(i);
+                if ((idmetaval >> 4) == 0) continue;
+                int newidmetaval = getBiomeSpecificID(idmetaval, 0);
+                if (newidmetaval != idmetaval) {    // New value?
+                    if (blkid_toss_tileentity.get(idmetaval)) { // If scrubbing tile entity
+                        tileents.add(i);
+                    }
+                    sch.setIDMeta(i, newidmetaval);
+                    bcnt++;
+                }
             }
         }
     }
 
+    private static ForkJoinPool forkpool;   // For remapping large schematics (created on first use)
+    private static int forkthreads = WorkerPool.defaultThreads();   // Parallelism of forkpool (--threads)
+
+    private static synchronized ForkJoinPool getForkPool() {
+        if (forkpool == null) {
+            forkpool = new ForkJoinPool(Math.max(1, forkthreads));
+        }
+        return forkpool;
+    }
+
+    // Test if mapping of schematic blocks (biome 0) can set IDs over 255 (needing AddBlocks)
+    private static boolean mapsToExtendedIDs() {
+        for (int[] map : new int[][] { blkid_map, biome_blkid_map[0] }) {
+            if (map == null) continue;
+            for (int i = 0; i < map.length; i++) {
+                if ((map[i] != i) && (map[i] < RANDOM_INDEX) && ((map[i] >> 4) > 255)) return true;
+            }
+        }
+        for (int[] randlist : blkid_random_map) {
+            for (int v : randlist) {
+                if ((v >> 4) > 255) return true;
+            }
+        }
+        return false;
+    }
+
     // Process a schematic file
     private static void processSchematicFile(File srcfile, File destfile) throws IOException {
         boolean success = false;
@@ -607,50 +2417,40 @@ public class WorldMapper {
         int tecnt = 0;
         RegionFile destf = null;
         if (update && (srcfile.lastModified() == destfile.lastModified())) {
-            System.out.println("Schematic file " + destfile.getPath() + ": source unchaged");
+            Log.info("Schematic file " + destfile.getPath() + ": source unchaged");
             return;
         }
+        File outfile = tempFile(destfile);
         try {
             WESchematicFile schfile = new WESchematicFile();
             schfile.load(srcfile);  // Load it
-            for (int x = 0; x < schfile.width; x++) {
-                for (int y = 0; y < schfile.height; y++) {
-                    for (int z = 0; z < schfile.length; z++) {
-                        int id = schfile.getID(x, y, z);
-                        if (id != 0) {
-                            int meta = schfile.getData(x, y, z);
-                            int idmataval = (id << 4) | meta;
-                            int newidmetaval = blkid_map[idmataval];
-                            
-                            newidmetaval = getBiomeSpecificID(idmataval, 0);
-
-                            if (newidmetaval != idmataval) {    // New value?
-                                if (blkid_toss_tileentity.get(idmataval)) { // If scrubbing tile entity
-                                    schfile.deleteTileEntity(x, y, z);
-                                    tecnt++;
-                                }
-                                id = (newidmetaval >> 4);
-                                meta = (newidmetaval & 0xF);
-                                schfile.setIDAndData(x, y, z, id, meta);
-                                bcnt++;
-                            }
-                        }
-                    }
+            SchematicSlab all = new SchematicSlab(schfile, 0, schfile.getVolume());
+            if (schfile.getVolume() > SchematicSlab.MIN_BLOCKS) {   // Large: remap in slabs, on all cores
+                if (mapsToExtendedIDs()) {
+                    schfile.addExtIDs();    // Slabs cannot add it safely
                 }
+                getForkPool().invoke(all);
+            }
+            else {
+                all.compute();
             }
-            schfile.save(destfile);
+            bcnt = all.bcnt;
+            for (int index : all.tileents) {
+                schfile.deleteTileEntity(index);
+                tecnt++;
+            }
+            schfile.save(outfile);
             
             success = true;
 
-            System.out.println("Schematic " + destfile.getPath() + ", updated " + bcnt + " blocks, stripped " + tecnt + " tile entities");
-        } catch (IOException iox) {
-            System.out.println("Schematic " + destfile.getPath() + " FAILED - " + iox.getMessage());
+            Log.info("Schematic " + destfile.getPath() + ", updated " + bcnt + " blocks, stripped " + tecnt + " tile entities");
         } finally {
             if (!success) {
-                destfile.delete();
+                outfile.delete();
             }
             else {
-                destfile.setLastModified(srcfile.lastModified()); // Preserve last modified
+                outfile.setLastModified(srcfile.lastModified()); // Preserve last modified
+                publish(outfile, destfile);
             }
             if (destf != null) {
                 destf.cleanup();
@@ -664,9 +2464,10 @@ public class WorldMapper {
         int bcnt = 0;
         RegionFile destf = null;
         if (update && (srcfile.lastModified() == destfile.lastModified())) {
-            System.out.println("BO2 file " + destfile.getPath() + ": source unchaged");
+            Log.info("BO2 file " + destfile.getPath() + ": source unchaged");
             return;
         }
+        File outfile = tempFile(destfile);
         try {
             WorldPainterBO2File bo2file = new WorldPainterBO2File();
             bo2file.load(srcfile);  // Load it
@@ -687,19 +2488,18 @@ public class WorldMapper {
                     }
                 }
             }
-            bo2file.save(destfile);
+            bo2file.save(outfile);
             
             success = true;
 
-            System.out.println("BO2 file " + destfile.getPath() + ", updated " + bcnt + " blocks");
-        } catch (IOException iox) {
-            System.out.println("BO2 file " + destfile.getPath() + " FAILED - " + iox.getMessage());
+            Log.info("BO2 file " + destfile.getPath() + ", updated " + bcnt + " blocks");
         } finally {
             if (!success) {
-                destfile.delete();
+                outfile.delete();
             }
             else {
-                destfile.setLastModified(srcfile.lastModified()); // Preserve last modified
+                outfile.setLastModified(srcfile.lastModified()); // Preserve last modified
+                publish(outfile, destfile);
             }
             if (destf != null) {
                 destf.cleanup();
@@ -712,21 +2512,116 @@ public class WorldMapper {
             try {
                 closable.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.warn("Error closing file: " + e.getMessage());
             }
         }
     }
 
     // Process a generic file (just copy)
     private static void processFileCopy(File source, File target) throws IOException {
-        FileChannel in = null;
-        FileChannel out = null;
-
         if (update && (source.lastModified() == target.lastModified())) {
-            System.out.println("Skipped " + target.getPath() + ": source unchanged");
+            Log.info("Skipped " + target.getPath() + ": source unchanged");
             return;
         }
+        File tmpfile = tempFile(target);
+        boolean success = false;
+        String how;
+        try {
+            how = cloneFile(source, tmpfile);
+            publish(tmpfile, target);
+            success = true;
+        } finally {
+            if (!success) {
+                tmpfile.delete();
+            }
+        }
+        
+        Log.info(how + " " + source.getPath() + " to " + target.getPath());
+    }
 
+    /**
+     * Create unmodified copy of file, per --link: hard link, copy-on-write clone (via cp --reflink, where the file
+     * system supports it), or plain copy.  Falls back to plain copy if linking fails.  Last modified time is preserved.
+     * @return how file was copied ("Linked", "Cloned" or "Copied")
+     */
+    private static String cloneFile(File source, File target) throws IOException {
+        target.delete();
+        if ((linkmode == LinkMode.HARD) && !linkfailed) {
+            try {
+                Files.createLink(target.toPath(), source.toPath());
+                Metrics.add(Metrics.Counter.FILES_LINKED, 1);
+                return "Linked";
+            } catch (IOException iox) {
+                linkFailed("Hard link " + source.getPath() + " failed: " + iox.getMessage());
+            } catch (UnsupportedOperationException uox) {
+                linkFailed("Hard links not supported");
+            }
+        }
+        else if ((linkmode == LinkMode.REFLINK) && !linkfailed) {
+            ProcessBuilder pb = new ProcessBuilder("cp", "--reflink=always", source.getPath(), target.getPath());
+            pb.redirectErrorStream(true);
+            try {
+                Process p = pb.start();
+                BufferOutputStream msg = new BufferOutputStream();
+                msg.readFrom(p.getInputStream());
+                if (p.waitFor() == 0) {
+                    target.setLastModified(source.lastModified());
+                    Metrics.add(Metrics.Counter.FILES_CLONED, 1);
+                    return "Cloned";
+                }
+                linkFailed("Clone of " + source.getPath() + " failed: " + new String(msg.buf, 0, msg.len).trim());
+            } catch (IOException iox) {
+                linkFailed("Clone of " + source.getPath() + " failed: " + iox.getMessage());
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted cloning " + source.getPath());
+            }
+            target.delete();
+        }
+        copyFile(source, target);
+        target.setLastModified(source.lastModified());
+        return "Copied";
+    }
+
+    private static void linkFailed(String msg) {
+        if (!linkfailed) {
+            linkfailed = true;
+            Log.warn(msg + " - copying files instead");
+        }
+    }
+
+    // If file is hard linked (possibly to a source world), replace it with a private copy before modifying it
+    private static void breakLink(File f) throws IOException {
+        int nlink;
+        try {
+            nlink = (Integer) Files.getAttribute(f.toPath(), "unix:nlink");
+        } catch (UnsupportedOperationException uox) {
+            return;
+        } catch (IllegalArgumentException iax) {
+            return;
+        }
+        if (nlink <= 1) return;
+        File tmpfile = tempFile(f);
+        boolean success = false;
+        try {
+            copyFile(f, tmpfile);
+            tmpfile.setLastModified(f.lastModified());
+            publish(tmpfile, f);
+            success = true;
+        } finally {
+            if (!success) {
+                tmpfile.delete();
+            }
+        }
+        Log.debug("Hard link " + f.getPath() + " replaced by copy before update");
+    }
+
+    // Copy file contents
+    private static void copyFile(File source, File target) throws IOException {
+        FileChannel in = null;
+        FileChannel out = null;
+
+        long tstart = Metrics.start();
         try {
             in = new FileInputStream(source).getChannel();
             out = new FileOutputStream(target).getChannel();
@@ -737,13 +2632,13 @@ public class WorldMapper {
             while(transferred != size){
                 transferred += in.transferTo(transferred, size - transferred, out);
             }
+            Metrics.add(Metrics.Counter.BYTES_COPIED, size);
         } finally {
             close(in);
             close(out);
+            Metrics.stop(Metrics.Stage.COPY, tstart);
         }
-        target.setLastModified(source.lastModified()); // Preserve last modified
-        
-        System.out.println("Copied " + source.getPath() + " to " + target.getPath());
+        Metrics.add(Metrics.Counter.FILES_COPIED, 1);
     }
     
     // Merge region files
@@ -751,43 +2646,63 @@ public class WorldMapper {
         RegionFile srcf = null;
         RegionFile destf = null;
         try {
-            if (destfile.exists() == false) {   // No corresponding destination?
-                // Copy source file to destination
+            // Load region file headers
+            srcf = new RegionFile(srcfile, true);
+            srcf.setCountInput(true);
+            if ((destfile.exists() == false) ||     // No corresponding destination?
+                ((mergepolicy == MergePolicy.SOURCE) && (srcf.getChunkCount() == 1024))) {    // Replaces all chunks?
+                // Copy source file to destination, with its external chunks
                 processFileCopy(srcfile, destfile);
+                copyExternalChunks(srcf, srcfile, destfile, new BitSet());
+                return;
             }
-            else {  // Else update it
-                // Load region file
-                srcf = new RegionFile(srcfile);
-                srcf.load();
-                boolean allreplaced = true;
-                for (int x = 0; allreplaced && (x < 32); x++) {
-                    for (int z = 0; allreplaced && (z < 32); z++) {
-                        if(!srcf.chunkExists(x, z)) {   // If chunk doesn't exists
-                            allreplaced = false;
-                        }
-                    }
-                }
-                if (allreplaced) {
-                    // Copy source file to destination
-                    processFileCopy(srcfile, destfile);
-                    return;
+            destf = new RegionFile(destfile, true);
+            // Pick chunks to copy, per policy
+            int[] order = srcf.getChunksBySector();
+            int[] copy = new int[order.length];
+            int ccnt = 0;
+            for (int idx : order) {
+                int x = idx & 31, z = idx >> 5;
+                boolean use;
+                switch (mergepolicy) {
+                    case DEST:
+                        use = !destf.chunkExists(x, z);
+                        break;
+                    case NEWEST:
+                        use = !destf.chunkExists(x, z) || (srcf.getChunkTimestamp(x, z) > destf.getChunkTimestamp(x, z));
+                        break;
+                    default:
+                        use = true;
+                        break;
                 }
-                // Load region file
-                destf = new RegionFile(destfile);
-                destf.load();
-                int cnt = 0;
-                for (int x = 0; x < 32; x++) {
-                    for (int z = 0; z < 32; z++) {
-                        if(srcf.chunkExists(x, z)) {   // If chunk exists
-                            cnt++;
-                            Tag<?> tag = srcf.readChunk(x, z);
-                            if (tag == null) { System.err.println("Chunk " + x + "," + z + " exists but not read"); continue; }
-                            destf.writeChunk(x, z, tag);    // Write to file
-                        }
-                    }
+                if (use) {
+                    copy[ccnt++] = idx;
                 }
-                System.out.println("Region " + srcfile.getPath() + ": copied " + cnt + " chunks to " + destfile.getPath());
             }
+            destf.cleanup();
+            destf = null;
+            int skipped = order.length - ccnt;
+            Metrics.add(Metrics.Counter.CHUNKS_SKIPPED, skipped);
+            if (ccnt == 0) {
+                Log.info("Region " + srcfile.getPath() + ": no chunks to copy to " + destfile.getPath());
+                return;
+            }
+            // Copy compressed chunk data, with timestamps
+            breakLink(destfile);
+            destf = new RegionFile(destfile);
+            WriteBatch batch = new WriteBatch(destf);
+            srcf.setReadAhead(readahead);
+            for (int i = 0; i < ccnt; i++) {   // Read in file order
+                int x = copy[i] & 31, z = copy[i] >> 5;
+                RegionFile.ChunkData cd = srcf.readChunkData(x, z);
+                if (cd == null) { Log.warn("Chunk " + x + "," + z + " exists but not read"); continue; }
+                destf.setChunkTimestamp(x, z, srcf.getChunkTimestamp(x, z));
+                batch.add(cd);    // Write to file
+            }
+            batch.flush();
+            Metrics.add(Metrics.Counter.CHUNKS_UPDATED, ccnt);
+            Log.info("Region " + srcfile.getPath() + ": copied " + ccnt + " chunks to " + destfile.getPath() +
+                ((skipped > 0) ? (", " + skipped + " skipped by policy") : ""));
         } finally {
             if (destf != null) {
                 destf.cleanup();
@@ -807,6 +2722,19 @@ public class WorldMapper {
         }
         return -1;
     }
+    // Test if block ID*16+meta is air after mapping (ignoring biome specific mappings; random ones if all choices are air)
+    private static boolean mapsToAir(int idmetaval) {
+        if ((idmetaval >> 4) == 0) return true;
+        int id = blkid_map[idmetaval];
+        if (id >= RANDOM_INDEX) {
+            for (int v : blkid_random_map.get(id - RANDOM_INDEX)) {
+                if ((v >> 4) != 0) return false;
+            }
+            return true;
+        }
+        return (id >> 4) == 0;
+    }
+
     private static int getBiomeSpecificID(int idmetaval, int biomeid) {
         if (idmetaval == 0) return 0;
         
@@ -823,7 +2751,7 @@ public class WorldMapper {
         }
         if (id >= RANDOM_INDEX) {
             int[] randlist = blkid_random_map.get(id - RANDOM_INDEX);
-            id = randlist[rnd.nextInt(randlist.length)];
+            id = randlist[ThreadLocalRandom.current().nextInt(randlist.length)];
         }
         return id;
     }
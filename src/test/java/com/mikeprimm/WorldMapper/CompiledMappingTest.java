@@ -0,0 +1,99 @@
+package com.mikeprimm.WorldMapper;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompiledMappingTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.newDir();
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    private static int[] identity() {
+        int[] v = new int[CompiledMapping.SIZE];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = i;
+        }
+        return v;
+    }
+
+    private static BitSet bits(int... v) {
+        BitSet bs = new BitSet();
+        for (int i : v) {
+            bs.set(i);
+        }
+        return bs;
+    }
+
+    @Test
+    public void saveLoad() throws IOException {
+        CompiledMapping cm = new CompiledMapping();
+        cm.blocks = identity();
+        cm.blocks[2000 * 16] = 3000 * 16;
+        cm.blocks[83 * 16 + 2] = 65536;     // Random list 0
+        cm.biomes[4] = identity();
+        cm.biomes[4][2000 * 16] = 1 * 16;
+        cm.biomeSpecific = bits(2000 * 16);
+        cm.tossTileEntity = bits(54 * 16, 54 * 16 + 1);
+        cm.tossIfUnsupported = bits(83 * 16);
+        cm.tossIfUnattached = new BitSet();
+        cm.transparent = bits(0, 20 * 16);
+        cm.random.add(new int[] { 16, 32, 48 });
+        cm.items = new int[] { 300, -1, 400, -1, 301, 2, 1, 0 };
+        cm.sourceModified = 1234567890L;
+        cm.sourcePath = "/maps/mod\u00e9.json";
+        File f = new File(dir, "map.wmc");
+        cm.save(f);
+        assertTrue(CompiledMapping.isCompiled(f));
+        assertFalse(new File(f.getPath() + ".tmp").exists());
+
+        CompiledMapping ld = CompiledMapping.load(f);
+        assertArrayEquals(cm.blocks, ld.blocks);
+        for (int i = 0; i < cm.biomes.length; i++) {
+            if (cm.biomes[i] == null) {
+                assertNull(ld.biomes[i]);
+            }
+            else {
+                assertArrayEquals(cm.biomes[i], ld.biomes[i]);
+            }
+        }
+        assertEquals(cm.biomeSpecific, ld.biomeSpecific);
+        assertEquals(cm.tossTileEntity, ld.tossTileEntity);
+        assertEquals(cm.tossIfUnsupported, ld.tossIfUnsupported);
+        assertEquals(cm.tossIfUnattached, ld.tossIfUnattached);
+        assertEquals(cm.transparent, ld.transparent);
+        assertEquals(1, ld.random.size());
+        assertArrayEquals(cm.random.get(0), ld.random.get(0));
+        assertArrayEquals(cm.items, ld.items);
+        assertEquals(cm.sourceModified, ld.sourceModified);
+        assertEquals(cm.sourcePath, ld.sourcePath);
+    }
+
+    @Test(expected = IOException.class)
+    public void notCompiled() throws IOException {
+        File f = new File(dir, "map.json");
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write("{ \"blocks\": [] }".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertFalse(CompiledMapping.isCompiled(f));
+        CompiledMapping.load(f);
+    }
+}
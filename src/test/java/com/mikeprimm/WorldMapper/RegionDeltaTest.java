@@ -0,0 +1,97 @@
+package com.mikeprimm.WorldMapper;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RegionDeltaTest {
+    private static final byte[] OLD0 = TestFiles.bytes(1, 3000);
+    private static final byte[] OLD1 = TestFiles.bytes(2, 5000);
+    private static final byte[] OLD2 = TestFiles.bytes(3, 7000);
+    private static final byte[] NEW1 = TestFiles.bytes(4, 12000);
+    private static final byte[] BIG = TestFiles.bytes(5, 300 * 4096);   // Oversized: stored externally
+
+    private File dir;
+    private File rfile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.newDir();
+        rfile = new File(dir, "r.0.0.mca");
+        RegionFile rf = new RegionFile(rfile);
+        rf.create();
+        rf.writeChunkData(0, 0, OLD0, OLD0.length);
+        rf.writeChunkData(1, 0, OLD1, OLD1.length);
+        rf.writeChunkData(2, 0, OLD2, OLD2.length);
+        rf.cleanup();
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    private static byte[] read(RegionFile rf, int x, int z) throws IOException {
+        RegionFile.ChunkData cd = rf.readChunkData(x, z);
+        assertNotNull(cd);
+        assertNull(cd.external);
+        byte[] b = new byte[cd.len];
+        System.arraycopy(cd.data, 0, b, 0, cd.len);
+        return b;
+    }
+
+    @Test
+    public void saveLoadApply() throws IOException {
+        RegionDelta d = new RegionDelta();
+        d.write(1, 0, 1234, new RegionFile.ChunkData(1, 0, NEW1, NEW1.length));
+        d.delete(2, 0);
+        d.write(3, 0, 5678, new RegionFile.ChunkData(3, 0, BIG, BIG.length));
+        File df = new File(dir, "r.0.0" + RegionDelta.SUFFIX);
+        d.save(df);
+
+        RegionDelta ld = RegionDelta.load(df);
+        assertEquals(2, ld.getWriteCount());
+        assertEquals(1, ld.getDeleteCount());
+        RegionFile rf = new RegionFile(rfile);
+        ld.applyTo(rf);
+        rf.cleanup();
+
+        rf = new RegionFile(rfile, true);
+        assertArrayEquals(OLD0, read(rf, 0, 0));
+        assertArrayEquals(NEW1, read(rf, 1, 0));
+        assertEquals(1234, rf.getChunkTimestamp(1, 0));
+        assertFalse(rf.chunkExists(2, 0));
+        RegionFile.ChunkData cd = rf.readChunkData(3, 0);
+        assertNotNull(cd.external);
+        assertEquals(5678, rf.getChunkTimestamp(3, 0));
+        assertEquals(BIG.length, cd.external.length());
+        rf.cleanup();
+    }
+
+    @Test
+    public void emptyDelta() throws IOException {
+        RegionDelta d = new RegionDelta();
+        assertTrue(d.isEmpty());
+        File df = new File(dir, "empty" + RegionDelta.SUFFIX);
+        d.save(df);
+        assertTrue(RegionDelta.load(df).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void notADelta() throws IOException {
+        File df = new File(dir, "bad" + RegionDelta.SUFFIX);
+        FileOutputStream out = new FileOutputStream(df);
+        try {
+            out.write(TestFiles.bytes(6, 100));
+        } finally {
+            out.close();
+        }
+        RegionDelta.load(df);
+    }
+}
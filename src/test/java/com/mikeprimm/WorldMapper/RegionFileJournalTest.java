@@ -0,0 +1,250 @@
+package com.mikeprimm.WorldMapper;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spout.nbt.ByteArrayTag;
+import org.spout.nbt.CompoundMap;
+import org.spout.nbt.CompoundTag;
+import org.spout.nbt.Tag;
+import org.spout.nbt.util.NBTMapper;
+
+public class RegionFileJournalTest {
+    // Chunk payloads (random, so they do not compress: sizes span several sectors)
+    private static final byte[] OLD0 = TestFiles.bytes(1, 3000);
+    private static final byte[] OLD1 = TestFiles.bytes(2, 9000);
+    private static final byte[] NEW0 = TestFiles.bytes(3, 20000);
+    private static final byte[] OLD2 = TestFiles.bytes(4, 1100000); // Oversized: stored in external file
+    private static final byte[] NEW2 = TestFiles.bytes(5, 1200000);
+
+    private File dir;
+    private File rfile;
+    private File extfile;   // External file of chunk 2,0
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.newDir();
+        rfile = new File(dir, "r.0.0.mca");
+        RegionFile rf = new RegionFile(rfile);
+        rf.create();
+        rf.writeChunk(0, 0, chunk(OLD0));
+        rf.writeChunk(1, 0, chunk(OLD1));
+        rf.writeChunk(2, 0, chunk(OLD2));
+        rf.writeChunkTimestamp(0, 0, 100);
+        rf.cleanup();
+        extfile = RegionFile.getExternalFile(rfile, 2, 0);
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    private static CompoundTag chunk(byte[] pad) {
+        CompoundMap map = new CompoundMap();
+        map.put("Pad", new ByteArrayTag("Pad", pad));
+        return new CompoundTag("", map);
+    }
+
+    private static byte[] read(RegionFile rf, int x, int z) throws IOException {
+        Tag<?> tag = rf.readChunk(x, z);
+        assertNotNull(tag);
+        return NBTMapper.getTagValue(((CompoundTag) tag).getValue().get("Pad"), byte[].class);
+    }
+
+    private static byte[] read(File f) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(f, "r");
+        try {
+            byte[] b = new byte[(int) in.length()];
+            in.readFully(b);
+            return b;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static File pendingFile(File f) {
+        return new File(f.getPath() + RegionFile.JOURNAL_SUFFIX);
+    }
+
+    /**
+     * Make journaled update of chunks 0,0 and 2,0 (external) and stop after its journal is written (as if the run died
+     * there)
+     * @param track - if true, track progress of update
+     * @return copy of region file, external files and journal at that point, in a directory of their own
+     */
+    private File crashAfterJournal(boolean track) throws IOException {
+        RegionFile rf = new RegionFile(rfile);
+        rf.setJournaled(true);
+        if (track) {
+            rf.trackProgress();
+        }
+        rf.writeChunk(0, 0, chunk(NEW0));
+        rf.writeChunkTimestamp(0, 0, 200);
+        rf.writeChunk(2, 0, chunk(NEW2));
+        File jfile = rf.writeJournal();
+        File crashdir = new File(dir, "crash");
+        crashdir.mkdir();
+        File crashfile = new File(crashdir, rfile.getName());
+        TestFiles.copy(rfile, crashfile);
+        TestFiles.copy(jfile, new File(crashfile.getPath() + RegionFile.JOURNAL_SUFFIX));
+        TestFiles.copy(extfile, new File(crashdir, extfile.getName()));
+        TestFiles.copy(pendingFile(extfile), pendingFile(new File(crashdir, extfile.getName())));
+        jfile.delete();
+        rf.cleanup();   // Discards uncommitted update
+        assertFalse(pendingFile(extfile).exists());
+        return crashfile;
+    }
+
+    @Test
+    public void commitUpdatesHeader() throws IOException {
+        RegionFile rf = new RegionFile(rfile);
+        rf.setJournaled(true);
+        rf.writeChunk(0, 0, chunk(NEW0));
+        rf.commit();
+        rf.cleanup();
+        assertFalse(new File(rfile.getPath() + RegionFile.JOURNAL_SUFFIX).exists());
+        rf = new RegionFile(rfile, true);
+        assertArrayEquals(NEW0, read(rf, 0, 0));
+        assertArrayEquals(OLD1, read(rf, 1, 0));
+        rf.cleanup();
+    }
+
+    @Test
+    public void uncommittedDiscarded() throws IOException {
+        long len = rfile.length();
+        RegionFile rf = new RegionFile(rfile);
+        rf.setJournaled(true);
+        rf.writeChunk(0, 0, chunk(NEW0));
+        rf.writeChunk(2, 0, chunk(NEW2));
+        rf.cleanup();
+        assertEquals(len, rfile.length());
+        assertFalse(pendingFile(extfile).exists());
+        rf = new RegionFile(rfile, true);
+        assertArrayEquals(OLD0, read(rf, 0, 0));
+        assertArrayEquals(OLD2, read(rf, 2, 0));
+        rf.cleanup();
+    }
+
+    @Test
+    public void externalReplacedAtCommit() throws IOException {
+        byte[] old = read(extfile);
+        RegionFile rf = new RegionFile(rfile);
+        rf.setJournaled(true);
+        rf.writeChunk(2, 0, chunk(NEW2));
+        assertArrayEquals(old, read(extfile));      // Committed data untouched
+        assertArrayEquals(NEW2, read(rf, 2, 0));    // Update sees its own write
+        rf.commit();
+        assertFalse(Arrays.equals(old, read(extfile)));
+        assertFalse(pendingFile(extfile).exists());
+        rf.deleteChunk(2, 0);
+        assertTrue(extfile.exists());
+        rf.commit();
+        rf.cleanup();
+        assertFalse(extfile.exists());
+    }
+
+    @Test
+    public void oversizedEncodedToPendingFile() throws IOException {
+        RegionFile rf = new RegionFile(rfile);
+        rf.setJournaled(true);
+        RegionFile.ChunkData cd = rf.encodeChunk(2, 0, chunk(NEW2));
+        assertEquals(pendingFile(extfile), cd.external);    // Streamed to file, not held in memory
+        assertNull(cd.data);
+        assertNotNull(rf.encodeChunk(0, 0, chunk(NEW0)).data);
+        rf.cleanup();   // Never written: dropped
+        assertFalse(pendingFile(extfile).exists());
+        rf = new RegionFile(rfile);
+        rf.setJournaled(true);
+        rf.writeChunks(Collections.singletonList(rf.encodeChunk(2, 0, chunk(NEW2))));
+        rf.commit();
+        rf.cleanup();
+        assertFalse(pendingFile(extfile).exists());
+        rf = new RegionFile(rfile, true);
+        assertArrayEquals(NEW2, read(rf, 2, 0));
+        rf.cleanup();
+    }
+
+    @Test
+    public void completeJournalRolledForward() throws IOException {
+        File crashfile = crashAfterJournal(false);
+        RegionFile rf = new RegionFile(crashfile);  // Recovers on load
+        assertFalse(new File(crashfile.getPath() + RegionFile.JOURNAL_SUFFIX).exists());
+        assertArrayEquals(NEW0, read(rf, 0, 0));
+        assertEquals(200, rf.getChunkTimestamp(0, 0));
+        assertArrayEquals(OLD1, read(rf, 1, 0));
+        assertArrayEquals(NEW2, read(rf, 2, 0));
+        assertFalse(pendingFile(new File(crashfile.getParentFile(), extfile.getName())).exists());
+        rf.cleanup();
+    }
+
+    @Test
+    public void truncatedJournalRolledBack() throws IOException {
+        long len = rfile.length();
+        File crashfile = crashAfterJournal(false);
+        File jfile = new File(crashfile.getPath() + RegionFile.JOURNAL_SUFFIX);
+        RandomAccessFile f = new RandomAccessFile(jfile, "rw");
+        try {
+            f.setLength(f.length() - 10);
+        } finally {
+            f.close();
+        }
+        RegionFile rf = new RegionFile(crashfile);
+        assertFalse(jfile.exists());
+        assertEquals(len, crashfile.length());  // Sectors of uncommitted update dropped
+        assertArrayEquals(OLD0, read(rf, 0, 0));
+        assertEquals(100, rf.getChunkTimestamp(0, 0));
+        assertArrayEquals(OLD1, read(rf, 1, 0));
+        assertArrayEquals(OLD2, read(rf, 2, 0));
+        assertFalse(pendingFile(new File(crashfile.getParentFile(), extfile.getName())).exists());
+        rf.cleanup();
+    }
+
+    @Test
+    public void progressSavedAtCommit() throws IOException {
+        assertNull(RegionFile.readProgress(rfile));
+        RegionFile rf = new RegionFile(rfile);
+        rf.setJournaled(true);
+        rf.trackProgress();
+        rf.writeChunk(0, 0, chunk(NEW0));
+        rf.commit();
+        rf.cleanup();
+        BitSet done = RegionFile.readProgress(rfile);
+        assertNotNull(done);
+        assertTrue(done.get(0));
+        assertFalse(done.get(1));
+        // Next run picks up where the last one stopped
+        rf = new RegionFile(rfile);
+        rf.setJournaled(true);
+        rf.trackProgress();
+        rf.deleteChunk(1, 0);
+        rf.commit();
+        rf.cleanup();
+        done = RegionFile.readProgress(rfile);
+        assertEquals(2, done.cardinality());
+        assertTrue(done.get(1));
+        RegionFile.deleteProgress(rfile);
+        assertNull(RegionFile.readProgress(rfile));
+    }
+
+    @Test
+    public void progressRolledForward() throws IOException {
+        File crashfile = crashAfterJournal(true);
+        assertNull(RegionFile.readProgress(crashfile));
+        new RegionFile(crashfile).cleanup();
+        BitSet done = RegionFile.readProgress(crashfile);
+        assertNotNull(done);
+        assertEquals(2, done.cardinality());
+        assertTrue(done.get(0));
+        assertTrue(done.get(2));
+    }
+}
@@ -0,0 +1,51 @@
+package com.mikeprimm.WorldMapper;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SchematicSlabTest {
+    private static final int MIN = WorldMapper.SchematicSlab.MIN_BLOCKS;
+
+    /**
+     * Split range as compute() does, checking each split point
+     * @return number of slabs remapped
+     */
+    private static int splitAll(int start, int end, int area, int depth) {
+        if ((end - start) <= MIN) {
+            return 1;
+        }
+        assertTrue("split too deep", depth < 32);
+        int mid = WorldMapper.SchematicSlab.split(start, end, area);
+        assertTrue("split " + start + ".." + end + " at " + mid, (mid > start) && (mid < end));
+        assertEquals(0, mid & 1);
+        return splitAll(start, mid, area, depth + 1) + splitAll(mid, end, area, depth + 1);
+    }
+
+    @Test
+    public void oddAreaSplits() {
+        int mid = WorldMapper.SchematicSlab.split(131768, 395307, 363 * 363);
+        assertTrue((mid > 131768) && (mid < 395307));
+        assertEquals(0, mid & 1);
+    }
+
+    @Test
+    public void oddAreasJustAboveMinimum() {
+        int[][] dims = { { 363, 363, 3 }, { 301, 299, 3 }, { 511, 513, 2 }, { 725, 723, 1 }, { 101, 103, 26 },
+            { 3, 5, 17477 }, { 1, 1, MIN + 1 } };
+        for (int[] d : dims) {
+            int area = d[0] * d[1];
+            int vol = area * d[2];
+            assertTrue(vol > MIN);
+            assertTrue(splitAll(0, vol, area, 0) >= 2);
+        }
+    }
+
+    @Test
+    public void evenAreaSplitsOnLayer() {
+        int area = 256 * 256;
+        int mid = WorldMapper.SchematicSlab.split(0, area * 10, area);
+        assertEquals(0, mid % area);
+        assertEquals(5 * area, mid);
+    }
+}
@@ -0,0 +1,73 @@
+package com.mikeprimm.WorldMapper;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SectionCodecTest {
+    private static short[] randomCells(long seed, int maxid) {
+        Random rnd = new Random(seed);
+        short[] cells = new short[4096];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = (short) ((rnd.nextInt(maxid + 1) << 4) | rnd.nextInt(16));
+        }
+        return cells;
+    }
+
+    private static long[] allDirty() {
+        long[] dirty = new long[SectionCodec.WORDS / 64];
+        for (int i = 0; i < 4096; i++) {
+            SectionCodec.markDirty(dirty, i);
+        }
+        return dirty;
+    }
+
+    @Test
+    public void packUnpackWithAdd() {
+        short[] cells = randomCells(1, 4095);
+        byte[] blocks = new byte[4096];
+        byte[] data = new byte[2048];
+        byte[] ext = SectionCodec.pack(cells, allDirty(), blocks, null, data);
+        assertNotNull("Add created for IDs over 255", ext);
+        assertEquals(2048, ext.length);
+        short[] out = new short[4096];
+        SectionCodec.unpack(blocks, ext, data, out);
+        assertArrayEquals(cells, out);
+    }
+
+    @Test
+    public void packUnpackWithoutAdd() {
+        short[] cells = randomCells(2, 255);
+        byte[] blocks = new byte[4096];
+        byte[] data = new byte[2048];
+        assertNull(SectionCodec.pack(cells, allDirty(), blocks, null, data));
+        short[] out = new short[4096];
+        SectionCodec.unpack(blocks, null, data, out);
+        assertArrayEquals(cells, out);
+    }
+
+    @Test
+    public void packOnlyDirtyWords() {
+        short[] cells = randomCells(3, 4095);
+        byte[] blocks = new byte[4096];
+        byte[] data = new byte[2048];
+        byte[] ext = SectionCodec.pack(cells, allDirty(), blocks, null, data);
+        byte[] before = blocks.clone();
+        // Change a few blocks, and flag only their words
+        long[] dirty = new long[SectionCodec.WORDS / 64];
+        for (int i : new int[] { 0, 7, 8, 1000, 4095 }) {
+            cells[i] = (short) ((4000 + i % 16) << 4 | 5);
+            SectionCodec.markDirty(dirty, i);
+        }
+        assertSame(ext, SectionCodec.pack(cells, dirty, blocks, ext, data));
+        short[] out = new short[4096];
+        SectionCodec.unpack(blocks, ext, data, out);
+        assertArrayEquals(cells, out);
+        // Words not flagged are untouched
+        for (int i = 16; i < 1000; i++) {
+            assertEquals(before[i], blocks[i]);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.mikeprimm.WorldMapper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Scratch files for tests
+ */
+public class TestFiles {
+    // Create empty scratch directory
+    public static File newDir() throws IOException {
+        File d = File.createTempFile("wmtest", "");
+        if (!d.delete() || !d.mkdir()) {
+            throw new IOException("Cannot create " + d.getPath());
+        }
+        return d;
+    }
+
+    // Delete file or directory tree
+    public static void delete(File f) {
+        if (f == null) return;
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File c : files) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    public static void copy(File src, File dest) throws IOException {
+        FileInputStream in = new FileInputStream(src);
+        try {
+            FileOutputStream out = new FileOutputStream(dest);
+            try {
+                byte[] buf = new byte[65536];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Random bytes (stand-in for compressed chunk data: region files do not look inside it)
+    public static byte[] bytes(long seed, int len) {
+        byte[] b = new byte[len];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+}